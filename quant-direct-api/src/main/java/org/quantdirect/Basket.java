@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handle of orders sent together with {@link Transaction#tradeBasket}.
+ * Every leg keeps its own order states and timeout, the basket only sums
+ * them up.
+ */
+public interface Basket {
+    List<Order> getOrders();
+
+    long getQuantity();
+
+    long getTradedQuantity();
+
+    /**
+     * Returns true when no leg is ACCEPTED any more.
+     */
+    boolean isDone();
+
+    /**
+     * Completes with the legs in the order they were given once all of them
+     * are done, fails with the first leg's failure if any leg fails.
+     */
+    CompletableFuture<List<Order>> getFuture();
+}
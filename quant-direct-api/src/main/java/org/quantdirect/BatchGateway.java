@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A gateway that can send several orders in one request. The platform sends
+ * the legs of a basket through it in a single call, other gateways get the
+ * legs one by one.
+ */
+public interface BatchGateway extends Gateway {
+    /**
+     * Sends all orders at once, the handler at an index belongs to the order
+     * at the same index.
+     */
+    void create(List<Order> orders, List<OrderHandler> handlers) throws IOException;
+}
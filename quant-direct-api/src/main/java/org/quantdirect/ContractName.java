@@ -17,6 +17,8 @@
 
 package org.quantdirect;
 
+import java.util.Objects;
+
 public class ContractName {
     private String i;
     private String e;
@@ -37,4 +39,26 @@ public class ContractName {
     public String exchangeId() {
         return e;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ContractName)) {
+            return false;
+        }
+        var n = (ContractName) o;
+        return Objects.equals(i, n.i) && Objects.equals(e, n.e);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(i) + Objects.hashCode(e);
+    }
+
+    @Override
+    public String toString() {
+        return i + "." + e;
+    }
 }
@@ -17,15 +17,40 @@
 
 package org.quantdirect;
 
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.indicator.IndicatorView;
+
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 public interface Feed {
     void subscribe(String instrumentId, MarketHandler handler) throws IOException;
 
+    void subscribe(String instrumentId, MarketHandler handler, Conflation conflation) throws IOException;
+
+    void subscribe(String instrumentId, int minutes, MarketHandler handler) throws IOException;
+
+    void subscribe(String instrumentId, Indicator indicator) throws IOException;
+
+    void subscribe(String instrumentId, int minutes, Indicator indicator) throws IOException;
+
+    void unsubscribe(String instrumentId, Indicator indicator) throws IOException;
+
+    IndicatorView share(String instrumentId, Indicator indicator) throws IOException;
+
+    IndicatorView share(String instrumentId, int minutes, Indicator indicator) throws IOException;
+
     void unsubscribe(String instrumentId) throws IOException;
 
     void unsubscribe(String instrumentId, MarketHandler handler) throws IOException;
 
     Date getTradingDay();
+
+    /**
+     * Runs the task once after the delay, on the platform's time, which is
+     * the replay time in a backtest. The task runs like the quanter's other
+     * callbacks and is cancelled when the feed closes.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit);
 }
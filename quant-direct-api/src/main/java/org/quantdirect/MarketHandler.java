@@ -18,6 +18,10 @@
 package org.quantdirect;
 
 public interface MarketHandler {
+    /**
+     * The tick may be a pooled instance that the platform reuses after this
+     * call returns. Use {@link Tick#copy()} to keep it.
+     */
     void onTick(Tick tick);
 
     void onCandle(Candle candle);
@@ -26,8 +26,19 @@ public interface Master {
 
     Collection<ContractName> getContractNames();
 
+    /**
+     * Every contract stored for the instrument and direction, the closed ones
+     * included. A contract is one unit. The units opened by one trade are
+     * named after it with an index that counts down to 0 at the unit closed
+     * last, so a unit keeps its id while older units of its trade close.
+     */
     Collection<Contract> getContracts(String instrumentId, String exchangeId, Direction direction);
 
+    /**
+     * Only the contracts still held, oldest first.
+     */
+    Collection<Contract> getOpenContracts(String instrumentId, String exchangeId, Direction direction);
+
     long countOpenContracts(String instrumentId, String exchangeId, Direction direction, LocalDateTime before);
 
     long countContracts(String instrumentId, String exchangeId, Direction direction, LocalDateTime before);
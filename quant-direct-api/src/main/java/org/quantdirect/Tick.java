@@ -19,8 +19,20 @@ package org.quantdirect;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-
+import java.time.ZoneOffset;
+
+/**
+ * Market snapshot of one instrument.
+ * <p>
+ * The time fields are only kept as primitives, epoch nanoseconds and epoch
+ * day at UTC+8, so a tick can be filled and read without creating
+ * {@code java.time} objects. The object getters build a new object on every
+ * call and never write the tick, so a tick shared by several subscribers is
+ * only read by them.
+ */
 public class Tick {
+    private static final ZoneOffset ZONE = ZoneOffset.ofHours(8);
+
     private String tickId;
     private String instrumentId;
     private String exchangeId;
@@ -40,8 +52,8 @@ public class Tick {
     private long tradeVolume;
     private long openInterest;
     private long preOpenInterest;
-    private LocalDate tradingDay;
-    private LocalDateTime updateTime;
+    private long tradingDayEpochDay;
+    private long updateTimeNanos;
 
     public Tick() {
     }
@@ -199,18 +211,69 @@ public class Tick {
     }
 
     public LocalDate getTradingDay() {
-        return tradingDay;
+        return tradingDayEpochDay == 0 ? null : LocalDate.ofEpochDay(tradingDayEpochDay);
     }
 
     public void setTradingDay(LocalDate tradingDay) {
-        this.tradingDay = tradingDay;
+        this.tradingDayEpochDay = tradingDay == null ? 0 : tradingDay.toEpochDay();
+    }
+
+    public long getTradingDayEpochDay() {
+        return tradingDayEpochDay;
+    }
+
+    public void setTradingDayEpochDay(long tradingDayEpochDay) {
+        this.tradingDayEpochDay = tradingDayEpochDay;
     }
 
     public LocalDateTime getUpdateTime() {
-        return updateTime;
+        if (updateTimeNanos == 0) {
+            return null;
+        }
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(updateTimeNanos, 1_000_000_000L),
+                (int) Math.floorMod(updateTimeNanos, 1_000_000_000L), ZONE);
     }
 
     public void setUpdateTime(LocalDateTime updateTime) {
-        this.updateTime = updateTime;
+        this.updateTimeNanos = updateTime == null ? 0 :
+                updateTime.toEpochSecond(ZONE) * 1_000_000_000L + updateTime.getNano();
+    }
+
+    public long getUpdateTimeNanos() {
+        return updateTimeNanos;
+    }
+
+    public void setUpdateTimeNanos(long updateTimeNanos) {
+        this.updateTimeNanos = updateTimeNanos;
+    }
+
+    public Tick copy() {
+        var t = new Tick();
+        t.copyFrom(this);
+        return t;
+    }
+
+    public void copyFrom(Tick other) {
+        tickId = other.tickId;
+        instrumentId = other.instrumentId;
+        exchangeId = other.exchangeId;
+        openPrice = other.openPrice;
+        highPrice = other.highPrice;
+        lowPrice = other.lowPrice;
+        closePrice = other.closePrice;
+        preClosePrice = other.preClosePrice;
+        settlePrice = other.settlePrice;
+        preSettlePrice = other.preSettlePrice;
+        askPrice = other.askPrice;
+        bidPrice = other.bidPrice;
+        askVolume = other.askVolume;
+        bidVolume = other.bidVolume;
+        upperLimitPrice = other.upperLimitPrice;
+        lowerLimitPrice = other.lowerLimitPrice;
+        tradeVolume = other.tradeVolume;
+        openInterest = other.openInterest;
+        preOpenInterest = other.preOpenInterest;
+        tradingDayEpochDay = other.tradingDayEpochDay;
+        updateTimeNanos = other.updateTimeNanos;
     }
 }
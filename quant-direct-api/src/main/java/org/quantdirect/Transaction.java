@@ -18,12 +18,39 @@
 package org.quantdirect;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public interface Transaction {
+    /**
+     * Sends the order and waits until it is no longer ACCEPTED. When it is
+     * still working after the timeout, the order is deleted and the call
+     * throws a {@link TimeoutException}. A timeout of zero or less expires at
+     * once, unlike with {@link #tradeAsync(Order, OrderHandler, int, TimeUnit)}.
+     */
     void trade(Order order, int timeout, TimeUnit unit) throws TimeoutException, IOException;
 
+    CompletableFuture<Order> tradeAsync(Order order, int timeout, TimeUnit unit);
+
+    /**
+     * Sends the order without blocking. The handler sees every order state
+     * and trade of this order, the returned future completes with the order
+     * once it is no longer ACCEPTED. When it is still working after the
+     * timeout, the platform deletes it and the future fails with a
+     * {@link TimeoutException}. A timeout of zero or less never expires.
+     */
+    CompletableFuture<Order> tradeAsync(Order order, OrderHandler handler, int timeout, TimeUnit unit);
+
+    /**
+     * Sends the orders as one basket without blocking. Gateways that are
+     * a {@link BatchGateway} get all legs in one call. Each leg is traded as
+     * with {@link #tradeAsync(Order, OrderHandler, int, TimeUnit)}, the
+     * handler sees the states and trades of all legs.
+     */
+    Basket tradeBasket(Collection<Order> orders, OrderHandler handler, int timeout, TimeUnit unit);
+
     Date getTradingDay();
 }
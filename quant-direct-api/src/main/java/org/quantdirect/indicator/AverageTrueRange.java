@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+/**
+ * Wilder's average true range. It is driven by candles only, ticks are
+ * ignored.
+ */
+public class AverageTrueRange implements Indicator {
+    private final int period;
+    private double atr;
+    private double prevClose;
+    private long n;
+
+    public AverageTrueRange(int period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + period + ".");
+        }
+        this.period = period;
+        prevClose = Double.NaN;
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        var h = candle.getHighPrice();
+        var l = candle.getLowPrice();
+        var tr = h - l;
+        if (!Double.isNaN(prevClose)) {
+            tr = Math.max(tr, Math.max(Math.abs(h - prevClose), Math.abs(l - prevClose)));
+        }
+        prevClose = candle.getClosePrice();
+        ++n;
+        if (n <= period) {
+            atr += (tr - atr) / n;
+        } else {
+            atr = (atr * (period - 1) + tr) / period;
+        }
+    }
+
+    @Override
+    public double value() {
+        return n == 0 ? Double.NaN : atr;
+    }
+
+    @Override
+    public boolean ready() {
+        return n >= period;
+    }
+
+    @Override
+    public String key() {
+        return "AverageTrueRange(" + period + ")";
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+/**
+ * Moving average with bands at {@code width} standard deviations. The value
+ * is the middle band, the bands and the deviation are also numbered for
+ * {@link #value(int)}, so they can be read from a shared view.
+ */
+public class BollingerBands implements Indicator {
+    public static final int MIDDLE = 0;
+    public static final int UPPER = 1;
+    public static final int LOWER = 2;
+    public static final int DEVIATION = 3;
+
+    private final DoubleRing r;
+    private final double width;
+    private double sum;
+    private double sumSq;
+
+    public BollingerBands(int period, double width) {
+        r = new DoubleRing(period);
+        this.width = width;
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        add(tick.getClosePrice());
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        add(candle.getClosePrice());
+    }
+
+    private void add(double x) {
+        var e = r.add(x);
+        sum += x;
+        sumSq += x * x;
+        if (!Double.isNaN(e)) {
+            sum -= e;
+            sumSq -= e * e;
+        }
+    }
+
+    @Override
+    public double value() {
+        return r.size() == 0 ? Double.NaN : sum / r.size();
+    }
+
+    @Override
+    public double value(int index) {
+        switch (index) {
+            case MIDDLE:
+                return value();
+            case UPPER:
+                return upper();
+            case LOWER:
+                return lower();
+            case DEVIATION:
+                return deviation();
+            default:
+                return Double.NaN;
+        }
+    }
+
+    public double upper() {
+        return value() + width * deviation();
+    }
+
+    public double lower() {
+        return value() - width * deviation();
+    }
+
+    public double deviation() {
+        var n = r.size();
+        if (n == 0) {
+            return Double.NaN;
+        }
+        var m = sum / n;
+        return Math.sqrt(Math.max(0, sumSq / n - m * m));
+    }
+
+    @Override
+    public boolean ready() {
+        return r.isFull();
+    }
+
+    @Override
+    public String key() {
+        return "BollingerBands(" + r.capacity() + "," + width + ")";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+/**
+ * Fixed-capacity ring of primitive doubles. Adding to a full ring evicts the
+ * oldest value.
+ */
+public class DoubleRing {
+    private final double[] v;
+    private int head;
+    private int size;
+
+    public DoubleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity + ".");
+        }
+        v = new double[capacity];
+    }
+
+    /**
+     * @return the evicted value, or {@code NaN} if the ring was not full
+     */
+    public double add(double x) {
+        double r = Double.NaN;
+        if (size == v.length) {
+            r = v[head];
+        } else {
+            ++size;
+        }
+        v[head] = x;
+        head = (head + 1) % v.length;
+        return r;
+    }
+
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size + ".");
+        }
+        return v[(head - size + index + v.length) % v.length];
+    }
+
+    public double last() {
+        return get(size - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return v.length;
+    }
+
+    public boolean isFull() {
+        return size == v.length;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+public class ExponentialAverage implements Indicator {
+    private final int period;
+    private final double alpha;
+    private double v;
+    private long n;
+
+    public ExponentialAverage(int period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + period + ".");
+        }
+        this.period = period;
+        alpha = 2.0 / (period + 1);
+        v = Double.NaN;
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        add(tick.getClosePrice());
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        add(candle.getClosePrice());
+    }
+
+    private void add(double x) {
+        v = n++ == 0 ? x : v + alpha * (x - v);
+    }
+
+    @Override
+    public double value() {
+        return v;
+    }
+
+    @Override
+    public boolean ready() {
+        return n >= period;
+    }
+
+    @Override
+    public String key() {
+        return "ExponentialAverage(" + period + ")";
+    }
+}
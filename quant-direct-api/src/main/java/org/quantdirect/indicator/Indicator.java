@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+/**
+ * Incremental indicator driven by the platform through
+ * {@link org.quantdirect.Feed#subscribe(String, Indicator)} or
+ * {@link org.quantdirect.Feed#subscribe(String, int, Indicator)}.
+ * <p>
+ * Updates run on the dispatch thread of the instrument before the market
+ * handlers of the same tick or candle are called, so a handler on that thread
+ * always reads the value that includes the current data.
+ * <p>
+ * {@link #key()} names the indicator type and its parameters. Indicators with
+ * the same key on the same series compute the same values, which lets the
+ * platform share one instance between subscribers.
+ */
+public interface Indicator extends IndicatorView {
+    void onTick(Tick tick);
+
+    void onCandle(Candle candle);
+
+    String key();
+}
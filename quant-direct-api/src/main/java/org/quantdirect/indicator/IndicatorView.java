@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+/**
+ * Read side of an {@link Indicator}. Shared indicators are handed out as
+ * views, so a subscriber can read the series but can't feed it.
+ */
+public interface IndicatorView {
+    double value();
+
+    /**
+     * Returns one of the values of an indicator that computes several, as
+     * numbered by the indicator. Index 0 is {@link #value()}, an index the
+     * indicator doesn't have is NaN.
+     */
+    default double value(int index) {
+        return index == 0 ? value() : Double.NaN;
+    }
+
+    boolean ready();
+}
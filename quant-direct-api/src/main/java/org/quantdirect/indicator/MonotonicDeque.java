@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+/**
+ * Rolling maximum or minimum over the last {@code window} values in amortized
+ * O(1) per value, kept in primitive arrays.
+ */
+public class MonotonicDeque {
+    private final double[] v;
+    private final long[] seq;
+    private final int window;
+    private final boolean max;
+    private int front;
+    private int size;
+    private long n;
+
+    public MonotonicDeque(int window, boolean max) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive: " + window + ".");
+        }
+        this.window = window;
+        this.max = max;
+        v = new double[window + 1];
+        seq = new long[window + 1];
+    }
+
+    public void add(double x) {
+        ++n;
+        while (size > 0) {
+            var b = v[(front + size - 1) % v.length];
+            if (max ? b <= x : b >= x) {
+                --size;
+            } else {
+                break;
+            }
+        }
+        var i = (front + size) % v.length;
+        v[i] = x;
+        seq[i] = n;
+        ++size;
+        while (seq[front] <= n - window) {
+            front = (front + 1) % v.length;
+            --size;
+        }
+    }
+
+    public double peek() {
+        return size == 0 ? Double.NaN : v[front];
+    }
+
+    public long count() {
+        return n;
+    }
+
+    public int window() {
+        return window;
+    }
+
+    public void clear() {
+        front = 0;
+        size = 0;
+        n = 0;
+    }
+}
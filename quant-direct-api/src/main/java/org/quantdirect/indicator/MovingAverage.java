@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+public class MovingAverage implements Indicator {
+    private final DoubleRing r;
+    private double sum;
+
+    public MovingAverage(int period) {
+        r = new DoubleRing(period);
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        add(tick.getClosePrice());
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        add(candle.getClosePrice());
+    }
+
+    private void add(double x) {
+        var e = r.add(x);
+        sum += x;
+        if (!Double.isNaN(e)) {
+            sum -= e;
+        }
+    }
+
+    @Override
+    public double value() {
+        return r.size() == 0 ? Double.NaN : sum / r.size();
+    }
+
+    @Override
+    public boolean ready() {
+        return r.isFull();
+    }
+
+    @Override
+    public String key() {
+        return "MovingAverage(" + r.capacity() + ")";
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+public class RollingLow implements Indicator {
+    private final MonotonicDeque d;
+
+    public RollingLow(int period) {
+        d = new MonotonicDeque(period, false);
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        d.add(tick.getClosePrice());
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        d.add(candle.getLowPrice());
+    }
+
+    @Override
+    public double value() {
+        return d.peek();
+    }
+
+    @Override
+    public boolean ready() {
+        return d.count() >= d.window();
+    }
+
+    @Override
+    public String key() {
+        return "RollingLow(" + d.window() + ")";
+    }
+}
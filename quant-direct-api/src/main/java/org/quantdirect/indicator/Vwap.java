@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.indicator;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+/**
+ * Volume-weighted average price of the trading day. Tick volume is taken as
+ * the difference of the cumulative trade volume, candles are weighted at
+ * their typical price.
+ */
+public class Vwap implements Indicator {
+    private double pv;
+    private long volume;
+    private long lastVolume;
+    private long day;
+
+    public Vwap() {
+        lastVolume = -1;
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        roll(tick.getTradingDayEpochDay());
+        var v = tick.getTradeVolume();
+        if (lastVolume >= 0 && v > lastVolume) {
+            var dv = v - lastVolume;
+            pv += tick.getClosePrice() * dv;
+            volume += dv;
+        }
+        lastVolume = v;
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        roll(candle.getTradingDay() == null ? day : candle.getTradingDay().toEpochDay());
+        var p = (candle.getHighPrice() + candle.getLowPrice() + candle.getClosePrice()) / 3;
+        pv += p * candle.getTradeVolume();
+        volume += candle.getTradeVolume();
+    }
+
+    private void roll(long tradingDay) {
+        if (tradingDay != day) {
+            day = tradingDay;
+            pv = 0;
+            volume = 0;
+            lastVolume = -1;
+        }
+    }
+
+    @Override
+    public double value() {
+        return volume == 0 ? Double.NaN : pv / volume;
+    }
+
+    @Override
+    public boolean ready() {
+        return volume > 0;
+    }
+
+    @Override
+    public String key() {
+        return "Vwap";
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TickTest {
+
+    private static final long NANOS = LocalDateTime.of(2021, 3, 5, 9, 30, 15, 500_000_000)
+            .toEpochSecond(ZoneOffset.ofHours(8)) * 1_000_000_000L + 500_000_000L;
+
+    @Test
+    void objectGettersMatchPrimitives() {
+        var t = new Tick();
+        t.setTradingDay(LocalDate.of(2021, 3, 5));
+        t.setUpdateTime(LocalDateTime.of(2021, 3, 5, 9, 30, 15, 500_000_000));
+        assertEquals(LocalDate.of(2021, 3, 5).toEpochDay(), t.getTradingDayEpochDay());
+        assertEquals(NANOS, t.getUpdateTimeNanos());
+        t.setTradingDayEpochDay(LocalDate.of(2021, 3, 8).toEpochDay());
+        t.setUpdateTimeNanos(NANOS + 1_000_000_000L);
+        assertEquals(LocalDate.of(2021, 3, 8), t.getTradingDay());
+        assertEquals(LocalDateTime.of(2021, 3, 5, 9, 30, 16, 500_000_000), t.getUpdateTime());
+    }
+
+    @Test
+    void readingDoesNotKeepStaleTimesOnReuse() {
+        var pooled = new Tick();
+        pooled.setTradingDay(LocalDate.of(2021, 3, 5));
+        pooled.setUpdateTimeNanos(NANOS);
+        assertNotNull(pooled.getTradingDay());
+        assertNotNull(pooled.getUpdateTime());
+        pooled.copyFrom(new Tick());
+        assertNull(pooled.getTradingDay());
+        assertNull(pooled.getUpdateTime());
+        var next = new Tick();
+        next.setTradingDayEpochDay(LocalDate.of(2021, 3, 8).toEpochDay());
+        next.setUpdateTimeNanos(NANOS + 60_000_000_000L);
+        pooled.copyFrom(next);
+        assertEquals(LocalDate.of(2021, 3, 8), pooled.getTradingDay());
+        assertEquals(LocalDateTime.of(2021, 3, 5, 9, 31, 15, 500_000_000), pooled.getUpdateTime());
+    }
+
+    /*
+     * The feed fills a pooled tick and subscribers read it through the
+     * primitive getters, neither may allocate.
+     */
+    @Test
+    void fillCopyAndReadPrimitivesDoNotAllocate() {
+        var b = ManagementFactory.getThreadMXBean();
+        assumeTrue(b instanceof com.sun.management.ThreadMXBean);
+        var m = (com.sun.management.ThreadMXBean) b;
+        assumeTrue(m.isThreadAllocatedMemorySupported() && m.isThreadAllocatedMemoryEnabled());
+        var src = new Tick();
+        var dst = new Tick();
+        src.setInstrumentId("c2105");
+        src.setExchangeId("DCE");
+        long sum = 0;
+        for (int i = 0; i < 200_000; ++i) {
+            sum += fill(src, dst, i);
+        }
+        var id = Thread.currentThread().getId();
+        var before = m.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 200_000; ++i) {
+            sum += fill(src, dst, i);
+        }
+        var allocated = m.getThreadAllocatedBytes(id) - before;
+        assertNotEquals(0, sum);
+        assertTrue(allocated < 1024, "Allocated " + allocated + " bytes.");
+    }
+
+    private static long fill(Tick src, Tick dst, int i) {
+        src.setClosePrice(2500 + i % 50);
+        src.setTradeVolume(i);
+        src.setOpenInterest(i * 2L);
+        src.setTradingDayEpochDay(18_691 + i % 3);
+        src.setUpdateTimeNanos(NANOS + i * 500_000_000L);
+        dst.copyFrom(src);
+        return dst.getTradingDayEpochDay() + dst.getUpdateTimeNanos() + dst.getTradeVolume()
+                + (long) dst.getClosePrice();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Tick;
+
+/**
+ * Fills an order at the opposite best price whenever its limit crosses it,
+ * up to the quoted volume. There is no queue and no latency, which suits quick
+ * sweeps but overstates the fills of passive orders.
+ */
+public class CrossingFillModel implements FillModel {
+
+    @Override
+    public boolean enter(FillState state, Tick tick) {
+        return true;
+    }
+
+    @Override
+    public long match(FillState s, Tick t, long available) {
+        s.crossed = false;
+        var px = s.buy ? t.getAskPrice() : t.getBidPrice();
+        if (px <= 0 || (s.buy ? s.limit < px : s.limit > px)) {
+            return 0;
+        }
+        var v = s.buy ? t.getAskVolume() : t.getBidVolume();
+        s.price = px;
+        s.crossed = true;
+        return Math.min(s.remaining, Math.min(available, v > 0 ? v : s.remaining));
+    }
+}
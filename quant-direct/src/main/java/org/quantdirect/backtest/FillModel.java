@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Tick;
+
+/**
+ * Decides how simulated orders fill against market data.
+ * <p>
+ * A model keeps nothing per order itself, everything it needs to remember
+ * lives in the primitive fields of the order's {@link FillState}, so one
+ * model serves any number of orders and threads.
+ */
+public interface FillModel {
+
+    /**
+     * Prepares the state of an order entering the market. The order side,
+     * limit, quantity and entry time are set, {@code tick} is the last tick
+     * of the instrument and may be null. Returns false to reject the order.
+     */
+    boolean enter(FillState state, Tick tick);
+
+    /**
+     * Returns how many units of the order fill on this tick and sets the
+     * fill price. At most {@code available} units may fill by crossing the
+     * opposite side, the rest of that side's quote was taken by orders ahead
+     * of this one, and a crossing fill must set {@link FillState#crossed}.
+     */
+    long match(FillState state, Tick tick, long available);
+}
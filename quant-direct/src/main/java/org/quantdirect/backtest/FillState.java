@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+/**
+ * Primitive state of one simulated order, owned by the matching engine and
+ * updated by the {@link FillModel}.
+ */
+public final class FillState {
+
+    public boolean buy;
+    public double limit;
+    public long remaining;
+    public long enterNanos;
+    public long queue;
+    public long tradeVolume;
+    public boolean rested;
+    public double price;
+    public boolean crossed;
+
+    public FillState(boolean buy, double limit, long quantity, long enterNanos) {
+        this.buy = buy;
+        this.limit = limit;
+        this.remaining = quantity;
+        this.enterNanos = enterNanos;
+        this.queue = -1;
+        this.tradeVolume = -1;
+    }
+}
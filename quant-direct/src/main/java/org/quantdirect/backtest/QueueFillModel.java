@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Tick;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fill model that keeps an estimate of the volume queued ahead of a resting
+ * order.
+ * <p>
+ * An order reaches the market after the market data latency, the time the
+ * strategy took to see the tick it reacted to, plus the order entry latency.
+ * Until then it can't fill. Once in the market:
+ * <ul>
+ * <li>An order crossing the opposite best price fills at that price on its
+ * first tick and at its own limit later, when the market moves through it,
+ * up to the quoted volume.</li>
+ * <li>An order joining the best price queues behind the volume quoted there.
+ * Traded volume shrinks the queue, and so does a quote smaller than the
+ * queue, which means orders ahead were cancelled. Volume traded past the
+ * queue fills the order at its limit, as long as the last price traded at or
+ * through it.</li>
+ * <li>An order improving the best price is first in the queue, an order
+ * behind it waits until its price becomes the best and joins the queue
+ * then.</li>
+ * </ul>
+ * Orders priced outside the limit band of the tick are rejected, and at a
+ * limit-up or limit-down the empty side can't be crossed, so orders at the
+ * limit only fill from traded volume.
+ */
+public class QueueFillModel implements FillModel {
+
+    private final long entry;
+    private final long data;
+
+    public QueueFillModel() {
+        this(0, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public QueueFillModel(long entryLatency, long dataLatency, TimeUnit unit) {
+        entry = Math.max(0, unit.toNanos(entryLatency));
+        data = Math.max(0, unit.toNanos(dataLatency));
+    }
+
+    @Override
+    public boolean enter(FillState s, Tick t) {
+        if (t == null) {
+            return true;
+        }
+        var up = t.getUpperLimitPrice();
+        var down = t.getLowerLimitPrice();
+        if ((up > 0 && s.limit > up) || (down > 0 && s.limit < down)) {
+            return false;
+        }
+        s.tradeVolume = t.getTradeVolume();
+        return true;
+    }
+
+    @Override
+    public long match(FillState s, Tick t, long available) {
+        s.crossed = false;
+        var dv = s.tradeVolume < 0 ? 0 : Math.max(0, t.getTradeVolume() - s.tradeVolume);
+        s.tradeVolume = t.getTradeVolume();
+        var n = t.getUpdateTimeNanos();
+        if (n != 0 && s.enterNanos != 0 && n < s.enterNanos + data + entry) {
+            return 0;
+        }
+        var rested = s.rested;
+        s.rested = true;
+        var opposite = s.buy ? t.getAskPrice() : t.getBidPrice();
+        if (opposite > 0 && (s.buy ? s.limit >= opposite : s.limit <= opposite)) {
+            var v = s.buy ? t.getAskVolume() : t.getBidVolume();
+            s.price = rested ? s.limit : opposite;
+            s.crossed = true;
+            s.queue = 0;
+            return Math.min(s.remaining, Math.min(available, v > 0 ? v : s.remaining));
+        }
+        var best = s.buy ? t.getBidPrice() : t.getAskPrice();
+        var depth = s.buy ? t.getBidVolume() : t.getAskVolume();
+        if (best <= 0 || (s.buy ? s.limit > best : s.limit < best)) {
+            s.queue = 0;
+        } else if (s.limit == best) {
+            if (s.queue < 0) {
+                s.queue = depth;
+                return 0;
+            }
+            s.queue = Math.min(s.queue, depth);
+        } else {
+            s.queue = -1;
+            return 0;
+        }
+        var last = t.getClosePrice();
+        if (s.buy ? last <= s.limit : last >= s.limit) {
+            s.queue -= dv;
+        }
+        if (s.queue >= 0) {
+            return 0;
+        }
+        var q = Math.min(s.remaining, -s.queue);
+        s.queue = 0;
+        s.price = s.limit;
+        return q;
+    }
+}
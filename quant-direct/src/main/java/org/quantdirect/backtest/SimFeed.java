@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Conflation;
+import org.quantdirect.Feed;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.Tick;
+import org.quantdirect.Timeout;
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.indicator.IndicatorView;
+import org.quantdirect.platform.QdCandleAggregator;
+import org.quantdirect.platform.QdShares;
+import org.quantdirect.tools.LOG;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feed of one simulated quanter. Ticks are delivered on the thread running
+ * the simulation, in the recorded order, so conflation has nothing to drop
+ * and is ignored. Candles and shared indicators are kept by the same
+ * {@link QdCandleAggregator} and {@link QdShares} as the platform's feed,
+ * with the aggregator's time moved by the recorded ticks.
+ */
+class SimFeed implements Feed {
+
+    private final SimSession s;
+    private final Map<String, Instrument> in;
+    private final QdCandleAggregator agg;
+    private final QdShares sh;
+    private final PriorityQueue<SimTimeout> tm;
+    private long now;
+    private long seq;
+
+    SimFeed(SimSession session) {
+        s = session;
+        in = new HashMap<>();
+        agg = new QdCandleAggregator();
+        sh = new QdShares();
+        tm = new PriorityQueue<>();
+    }
+
+    /*
+     * Timers run on the recorded time, before the first record at or after
+     * their deadline, and bars that stopped receiving ticks close by it.
+     */
+    void advance(long nanos) {
+        if (nanos <= now) {
+            return;
+        }
+        now = nanos;
+        while (!tm.isEmpty() && tm.peek().deadline <= now) {
+            var x = tm.poll();
+            if (x.state == SimTimeout.PENDING) {
+                x.state = SimTimeout.EXPIRED;
+                try {
+                    x.task.run();
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+        }
+        agg.advance(now);
+    }
+
+    void onTick(Tick tick) {
+        agg.onTick(tick);
+        var x = in.get(tick.getInstrumentId());
+        if (x == null) {
+            return;
+        }
+        for (int i = 0; i < x.indicators.size(); ++i) {
+            try {
+                x.indicators.get(i).onTick(tick);
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        }
+        for (int i = 0; i < x.handlers.size(); ++i) {
+            try {
+                x.handlers.get(i).onTick(tick);
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        }
+    }
+
+    void onCandle(Candle candle) {
+        var x = in.get(candle.getInstrumentId());
+        if (x == null) {
+            return;
+        }
+        for (int i = 0; i < x.handlers.size(); ++i) {
+            try {
+                x.handlers.get(i).onCandle(candle);
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        }
+    }
+
+    /*
+     * Bars still open when the session closes are complete, the next tick
+     * belongs to another trading day.
+     */
+    void onClose() {
+        agg.flush();
+        for (var x : tm) {
+            x.cancel();
+        }
+        tm.clear();
+    }
+
+    private Instrument instrument(String instrumentId) {
+        return in.computeIfAbsent(instrumentId, k -> new Instrument());
+    }
+
+    private static void check(int minutes) throws IOException {
+        if (minutes <= 0) {
+            throw new IOException("Illegal candle minutes: " + minutes + ".");
+        }
+    }
+
+    @Override
+    public void subscribe(String instrumentId, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        var h = instrument(instrumentId).handlers;
+        if (!h.contains(handler)) {
+            h.add(handler);
+        }
+    }
+
+    @Override
+    public void subscribe(String instrumentId, MarketHandler handler, Conflation conflation) throws IOException {
+        subscribe(instrumentId, handler);
+    }
+
+    @Override
+    public void subscribe(String instrumentId, int minutes, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        check(minutes);
+        agg.subscribe(instrumentId, minutes, handler);
+    }
+
+    @Override
+    public void subscribe(String instrumentId, Indicator indicator) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            return;
+        }
+        var d = instrument(instrumentId).indicators;
+        if (!d.contains(indicator)) {
+            d.add(indicator);
+        }
+    }
+
+    @Override
+    public void subscribe(String instrumentId, int minutes, Indicator indicator) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            return;
+        }
+        check(minutes);
+        agg.subscribe(instrumentId, minutes, indicator);
+    }
+
+    /*
+     * An indicator passed to share releases its request, the shared one is
+     * unsubscribed with the last request.
+     */
+    @Override
+    public void unsubscribe(String instrumentId, Indicator indicator) throws IOException {
+        var x = sh.release(instrumentId, indicator);
+        if (x != null) {
+            remove(instrumentId, x);
+        }
+    }
+
+    private void remove(String instrumentId, Indicator indicator) {
+        agg.remove(instrumentId, indicator);
+        var x = in.get(instrumentId);
+        if (x != null) {
+            x.indicators.remove(indicator);
+        }
+    }
+
+    @Override
+    public IndicatorView share(String instrumentId, Indicator indicator) throws IOException {
+        return share(instrumentId, 0, indicator);
+    }
+
+    @Override
+    public IndicatorView share(String instrumentId, int minutes, Indicator indicator) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            throw new IOException("Share null instrument or indicator.");
+        }
+        var v = sh.request(instrumentId, minutes, indicator);
+        if (v == null) {
+            if (minutes == 0) {
+                subscribe(instrumentId, indicator);
+            } else {
+                subscribe(instrumentId, minutes, indicator);
+            }
+            v = sh.add(instrumentId, minutes, indicator);
+        }
+        return v;
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId) throws IOException {
+        in.remove(instrumentId);
+        agg.remove(instrumentId);
+        sh.remove(instrumentId);
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId, MarketHandler handler) throws IOException {
+        agg.remove(instrumentId, handler);
+        var x = in.get(instrumentId);
+        if (x != null) {
+            x.handlers.remove(handler);
+        }
+    }
+
+    @Override
+    public Date getTradingDay() {
+        return s.getTradingDay();
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null || unit == null) {
+            throw new NullPointerException("Schedule null task or unit.");
+        }
+        var x = new SimTimeout(task, now + Math.max(0, unit.toNanos(delay)), seq++);
+        tm.add(x);
+        return x;
+    }
+
+    private static class SimTimeout implements Timeout, Comparable<SimTimeout> {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final long seq;
+        private int state;
+
+        SimTimeout(Runnable task, long deadline, long seq) {
+            this.task = task;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (state != PENDING) {
+                return false;
+            }
+            state = CANCELLED;
+            return true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public int compareTo(SimTimeout o) {
+            var c = Long.compare(deadline, o.deadline);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private static class Instrument {
+
+        private final List<MarketHandler> handlers = new ArrayList<>();
+        private final List<Indicator> indicators = new ArrayList<>();
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Datafeed;
+import org.quantdirect.DatafeedListener;
+import org.quantdirect.Direction;
+import org.quantdirect.BatchGateway;
+import org.quantdirect.GatewayListener;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.Order;
+import org.quantdirect.OrderHandler;
+import org.quantdirect.Tick;
+import org.quantdirect.Trade;
+import org.quantdirect.platform.QdTimer;
+import org.quantdirect.tools.CLOCK;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+import org.quantdirect.tools.TOOLS;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gateway with an in-process matching engine, for paper trading and for
+ * load testing the order pipeline without a broker.
+ * <p>
+ * Every instrument has a book of resting orders in price-time priority. An
+ * order enters its book after the ack latency and is matched against the
+ * last tick at once, then against every tick that follows. How much fills is
+ * up to the {@link FillModel}, by default a {@link CrossingFillModel}: a buy
+ * order fills at the ask while its limit is at or above it, a sell order at
+ * the bid, and one tick fills no more than the volume quoted on its side, so
+ * large orders fill partially over several ticks. Fill callbacks reach the
+ * {@link OrderHandler} after the fill latency.
+ * <p>
+ * Latencies are measured on the platform's {@link org.quantdirect.tools.CLOCK}
+ * by the {@link QdTimer}, which hands the delayed task to the gateway thread
+ * when it is due, so in a replay they pass with the replayed time.
+ * <p>
+ * The books are only touched on the gateway thread, ticks come in through
+ * {@link #onTick(Tick)} or a datafeed wrapped by {@link #tap(Datafeed)}.
+ * The legs of a batch enter their books together in one gateway task.
+ */
+public class SimGateway implements BatchGateway {
+
+    private final Map<String, Book> books;
+    private final Map<String, Resting> orders;
+    private final LongAdder created;
+    private final LongAdder filled;
+    private volatile long ackNanos;
+    private volatile long fillNanos;
+    private volatile FillModel model;
+    private volatile long tradingDay;
+    private ThreadPoolExecutor es;
+    private GatewayListener listener;
+
+    public SimGateway() {
+        books = new HashMap<>();
+        orders = new HashMap<>();
+        created = new LongAdder();
+        filled = new LongAdder();
+        model = new CrossingFillModel();
+    }
+
+    public void setAckLatency(long latency, TimeUnit unit) {
+        ackNanos = Math.max(0, unit.toNanos(latency));
+    }
+
+    public void setFillLatency(long latency, TimeUnit unit) {
+        fillNanos = Math.max(0, unit.toNanos(latency));
+    }
+
+    public void setFillModel(FillModel model) {
+        if (model != null) {
+            this.model = model;
+        }
+    }
+
+    /**
+     * Wraps a datafeed so that every tick it delivers to a subscriber is also
+     * matched by this gateway before the subscriber sees it.
+     */
+    public Datafeed tap(Datafeed datafeed) {
+        return new Tap(datafeed);
+    }
+
+    public void onTick(Tick tick) {
+        var t = tick.copy();
+        if (t.getTradingDayEpochDay() != 0) {
+            tradingDay = t.getTradingDayEpochDay();
+        }
+        run(0, () -> match(t));
+    }
+
+    @Override
+    public void create(Order order, OrderHandler handler) throws IOException {
+        var r = resting(order, handler);
+        created.increment();
+        run(ackNanos, () -> enter(r));
+    }
+
+    @Override
+    public void create(List<Order> orders, List<OrderHandler> handlers) throws IOException {
+        if (orders == null || handlers == null || orders.size() != handlers.size()) {
+            throw new IOException("Orders and handlers don't match.");
+        }
+        var rs = new ArrayList<Resting>(orders.size());
+        for (int i = 0; i < orders.size(); ++i) {
+            rs.add(resting(orders.get(i), handlers.get(i)));
+        }
+        created.add(rs.size());
+        run(ackNanos, () -> rs.forEach(this::enter));
+    }
+
+    private Resting resting(Order order, OrderHandler handler) throws IOException {
+        if (order == null || handler == null) {
+            throw new IOException("Create null order or handler.");
+        }
+        if (order.getInstrumentId() == null || order.getDirection() == null || order.getQuantity() <= 0) {
+            throw new IOException("Illegal order: " + order.getOrderId() + ".");
+        }
+        if (order.getOrderId() == null) {
+            order.setOrderId(TOOLS.nextId());
+        }
+        return new Resting(snapshot(order), handler);
+    }
+
+    @Override
+    public void delete(Order order) throws IOException {
+        if (order == null || order.getOrderId() == null) {
+            throw new IOException("Delete null order.");
+        }
+        var id = order.getOrderId();
+        run(ackNanos, () -> cancel(id));
+    }
+
+    @Override
+    public synchronized void start(GatewayListener listener) {
+        if (es != null) {
+            throw new IllegalStateException("Gateway is running.");
+        }
+        this.listener = listener;
+        var x = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            var t = new Thread(r, "QD-SIM-GATEWAY");
+            t.setDaemon(true);
+            return t;
+        });
+        es = x;
+        METRICS.register("gateway.sim.created", created::sum);
+        METRICS.register("gateway.sim.filled", filled::sum);
+        METRICS.register("gateway.sim.queue", () -> x.getQueue().size());
+        listener.onStart();
+        listener.onOpen();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (es == null) {
+            return;
+        }
+        es.shutdown();
+        try {
+            es.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        es = null;
+        METRICS.unregister("gateway.sim.created");
+        METRICS.unregister("gateway.sim.filled");
+        METRICS.unregister("gateway.sim.queue");
+        listener.onClose();
+        listener.onStop();
+    }
+
+    @Override
+    public Date getTradingDay() {
+        var d = tradingDay;
+        if (d == 0) {
+            d = CLOCK.today().toEpochDay();
+        }
+        return Date.from(LocalDate.ofEpochDay(d).atStartOfDay().toInstant(ZoneOffset.ofHours(8)));
+    }
+
+    private void run(long delayNanos, Runnable r) {
+        Runnable g = () -> {
+            try {
+                r.run();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        };
+        if (delayNanos == 0) {
+            execute(g);
+        } else {
+            QdTimer.instance().schedule(() -> execute(g), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /*
+     * A delayed task that comes due once the gateway is stopping is dropped.
+     */
+    private void execute(Runnable r) {
+        ThreadPoolExecutor x;
+        synchronized (this) {
+            x = es;
+        }
+        if (x == null) {
+            LOG.write("Gateway isn't started.", this);
+            return;
+        }
+        try {
+            x.execute(r);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    private void enter(Resting r) {
+        var o = r.order;
+        if (orders.containsKey(o.getOrderId())) {
+            r.handler.onError(1, "Duplicated order: " + o.getOrderId() + ".");
+            return;
+        }
+        var b = books.computeIfAbsent(o.getInstrumentId(), k -> new Book());
+        if (!model.enter(r.state, b.last)) {
+            r.handler.onError(2, "Price out of limits: " + o.getPrice() + ".");
+            return;
+        }
+        orders.put(o.getOrderId(), r);
+        b.side(o.getDirection()).computeIfAbsent(o.getPrice(), k -> new ArrayDeque<>()).add(r);
+        o.setStatus(Order.Status.ACCEPTED);
+        o.setUpdateTime(CLOCK.now());
+        r.handler.onOrder(snapshot(o));
+        if (b.last != null) {
+            match(b, b.last);
+        }
+    }
+
+    private void cancel(String orderId) {
+        var r = orders.remove(orderId);
+        if (r == null) {
+            return;
+        }
+        var o = r.order;
+        var q = books.get(o.getInstrumentId()).side(o.getDirection()).get(o.getPrice());
+        if (q != null) {
+            q.remove(r);
+            if (q.isEmpty()) {
+                books.get(o.getInstrumentId()).side(o.getDirection()).remove(o.getPrice());
+            }
+        }
+        o.setStatus(Order.Status.DELETED);
+        o.setUpdateTime(CLOCK.now());
+        var s = snapshot(o);
+        notify(() -> r.handler.onOrder(s));
+    }
+
+    private void match(Tick tick) {
+        var b = books.computeIfAbsent(tick.getInstrumentId(), k -> new Book());
+        b.last = tick;
+        match(b, tick);
+    }
+
+    private void match(Book b, Tick tick) {
+        match(b.buy, tick, tick.getAskVolume());
+        match(b.sell, tick, tick.getBidVolume());
+    }
+
+    /*
+     * Every resting order is shown the tick so the model can track its queue,
+     * best levels first. A quoted volume of zero means the feed doesn't
+     * report depth and doesn't limit crossing fills.
+     */
+    private void match(TreeMap<Double, ArrayDeque<Resting>> side, Tick tick, long volume) {
+        var left = volume > 0 ? volume : Long.MAX_VALUE;
+        var m = model;
+        var levels = side.values().iterator();
+        while (levels.hasNext()) {
+            var q = levels.next();
+            var it = q.iterator();
+            while (it.hasNext()) {
+                var r = it.next();
+                var s = r.state;
+                var n = Math.min(s.remaining, m.match(s, tick, left));
+                if (n <= 0) {
+                    continue;
+                }
+                if (s.crossed) {
+                    left -= n;
+                }
+                s.remaining -= n;
+                fill(r, s.price, n, tick);
+                if (s.remaining <= 0) {
+                    it.remove();
+                    orders.remove(r.order.getOrderId());
+                }
+            }
+            if (q.isEmpty()) {
+                levels.remove();
+            }
+        }
+    }
+
+    private void fill(Resting r, double price, long quantity, Tick tick) {
+        var o = r.order;
+        var t = new Trade();
+        t.setTradeId(TOOLS.nextId());
+        t.setOrderId(o.getOrderId());
+        t.setInstrumentId(o.getInstrumentId());
+        t.setExchangeId(o.getExchangeId());
+        t.setPrice(price);
+        t.setQuantity(quantity);
+        t.setDirection(o.getDirection());
+        t.setOffset(o.getOffset());
+        t.setTradingDay(tick.getTradingDay());
+        t.setUpdateTime(CLOCK.now());
+        o.setTradedQuantity(o.getTradedQuantity() + quantity);
+        if (o.getTradedQuantity() >= o.getQuantity()) {
+            o.setStatus(Order.Status.ALL_TRADED);
+        }
+        o.setUpdateTime(t.getUpdateTime());
+        var s = snapshot(o);
+        filled.increment();
+        notify(() -> {
+            r.handler.onTrade(t);
+            r.handler.onOrder(s);
+        });
+    }
+
+    private void notify(Runnable callback) {
+        var f = fillNanos;
+        if (f == 0) {
+            callback.run();
+        } else {
+            run(f, callback);
+        }
+    }
+
+    private static Order snapshot(Order o) {
+        var s = new Order();
+        s.setOrderId(o.getOrderId());
+        s.setInstrumentId(o.getInstrumentId());
+        s.setExchangeId(o.getExchangeId());
+        s.setPrice(o.getPrice());
+        s.setQuantity(o.getQuantity());
+        s.setTradedQuantity(o.getTradedQuantity());
+        s.setStatus(o.getStatus());
+        s.setStatusMessage(o.getStatusMessage());
+        s.setDirection(o.getDirection());
+        s.setOffset(o.getOffset());
+        s.setTradingDay(o.getTradingDay());
+        s.setUpdateTime(o.getUpdateTime());
+        return s;
+    }
+
+    private static class Resting {
+
+        private final Order order;
+        private final OrderHandler handler;
+        private final FillState state;
+
+        Resting(Order order, OrderHandler handler) {
+            this.order = order;
+            this.handler = handler;
+            this.state = new FillState(order.getDirection() == Direction.BUY, order.getPrice(),
+                    order.getQuantity(), CLOCK.nanos());
+        }
+    }
+
+    /*
+     * Buy orders are kept from the highest price down, sell orders from the
+     * lowest up, so the first entry of a side is always its best level.
+     */
+    private static class Book {
+
+        private final TreeMap<Double, ArrayDeque<Resting>> buy = new TreeMap<>(Comparator.reverseOrder());
+        private final TreeMap<Double, ArrayDeque<Resting>> sell = new TreeMap<>();
+        private Tick last;
+
+        TreeMap<Double, ArrayDeque<Resting>> side(Direction direction) {
+            return direction == Direction.BUY ? buy : sell;
+        }
+    }
+
+    private class Tap implements Datafeed {
+
+        private final Datafeed d;
+
+        Tap(Datafeed datafeed) {
+            d = datafeed;
+        }
+
+        @Override
+        public void subscribe(String instrumentId, MarketHandler handler) throws IOException {
+            d.subscribe(instrumentId, new MarketHandler() {
+                @Override
+                public void onTick(Tick tick) {
+                    SimGateway.this.onTick(tick);
+                    handler.onTick(tick);
+                }
+
+                @Override
+                public void onCandle(Candle candle) {
+                    handler.onCandle(candle);
+                }
+
+                @Override
+                public void onError(int code, String message) {
+                    handler.onError(code, message);
+                }
+            });
+        }
+
+        @Override
+        public void unsubscribe(String instrumentId) throws IOException {
+            d.unsubscribe(instrumentId);
+        }
+
+        @Override
+        public void start(DatafeedListener listener) {
+            d.start(listener);
+        }
+
+        @Override
+        public void stop() {
+            d.stop();
+        }
+
+        @Override
+        public Date getTradingDay() {
+            return d.getTradingDay();
+        }
+    }
+}
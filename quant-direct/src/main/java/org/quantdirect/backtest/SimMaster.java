@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Contract;
+import org.quantdirect.ContractName;
+import org.quantdirect.Direction;
+import org.quantdirect.Master;
+import org.quantdirect.Offset;
+import org.quantdirect.Tick;
+import org.quantdirect.Trade;
+import org.quantdirect.persistence.Lot;
+import org.quantdirect.platform.QdPositions;
+import org.quantdirect.tools.TOOLS;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory master of one simulated quanter. Contracts are kept in lots by
+ * a {@link QdPositions} of its own, the same book the platform answers its
+ * position queries from, so they follow the same rules: the oldest open
+ * contracts are closed first and units are named as the database names
+ * them. Closed lots are kept for {@link #getContracts}, and every close books
+ * its profit.
+ */
+class SimMaster implements Master {
+
+    private final Logger l;
+    private final Map<String, String> p;
+    private final QdPositions pos;
+    private final Set<ContractName> names;
+    private final Map<ContractName, List<Lot>> closed;
+    private double realized;
+
+    SimMaster() {
+        l = Logger.getAnonymousLogger();
+        l.setUseParentHandlers(false);
+        l.setLevel(Level.OFF);
+        p = new HashMap<>();
+        pos = new QdPositions();
+        names = new LinkedHashSet<>();
+        closed = new HashMap<>();
+    }
+
+    void onTrade(Trade trade) {
+        var n = ContractName.create(trade.getInstrumentId(), trade.getExchangeId());
+        names.add(n);
+        if (trade.getOffset() == Offset.OPEN) {
+            pos.open(Lot.open(trade, TOOLS.nextId()));
+        } else {
+            var c = closed.computeIfAbsent(n, k -> new ArrayList<>());
+            pos.close(trade, x -> {
+                c.add(x);
+                realized += profit(x.getContract(), trade.getPrice()) * x.getQuantity();
+            });
+        }
+    }
+
+    double realized() {
+        return realized;
+    }
+
+    /**
+     * Profit of the open contracts if they were closed at the last prices.
+     * The book keeps the sum of its open prices, so this is cheap enough to
+     * run on each tick.
+     */
+    double unrealized(Map<String, Tick> last) {
+        double r = 0;
+        for (var n : names) {
+            var t = last.get(n.instrumentId());
+            if (t == null) {
+                continue;
+            }
+            var i = n.instrumentId();
+            var e = n.exchangeId();
+            var px = t.getClosePrice();
+            r += px * pos.getPosition(i, e, Direction.BUY) - pos.getOpenCost(i, e, Direction.BUY)
+                 + pos.getOpenCost(i, e, Direction.SELL) - px * pos.getPosition(i, e, Direction.SELL);
+        }
+        return r;
+    }
+
+    long position() {
+        long r = 0;
+        for (var n : names) {
+            r += pos.getPosition(n.instrumentId(), n.exchangeId(), Direction.BUY)
+                 - pos.getPosition(n.instrumentId(), n.exchangeId(), Direction.SELL);
+        }
+        return r;
+    }
+
+    private static double profit(Contract c, double price) {
+        var d = price - c.getOpenPrice();
+        return c.getDirection() == Direction.BUY ? d : -d;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return l;
+    }
+
+    @Override
+    public Collection<ContractName> getContractNames() {
+        return pos.getContractNames();
+    }
+
+    @Override
+    public Collection<Contract> getContracts(String instrumentId, String exchangeId, Direction direction) {
+        var r = new ArrayList<Contract>();
+        for (var x : closed.getOrDefault(ContractName.create(instrumentId, exchangeId), List.of())) {
+            if (x.getContract().getDirection() == direction) {
+                r.addAll(x.units(x.getQuantity()));
+            }
+        }
+        r.addAll(pos.getOpenContracts(instrumentId, exchangeId, direction));
+        return r;
+    }
+
+    @Override
+    public Collection<Contract> getOpenContracts(String instrumentId, String exchangeId, Direction direction) {
+        return pos.getOpenContracts(instrumentId, exchangeId, direction);
+    }
+
+    @Override
+    public long countOpenContracts(String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        return pos.countOpenContracts(instrumentId, exchangeId, direction, before);
+    }
+
+    @Override
+    public long countContracts(String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        return pos.countContracts(instrumentId, exchangeId, direction, before);
+    }
+
+    @Override
+    public void setProperty(String key, String value) {
+        p.put(key, value);
+    }
+
+    @Override
+    public String getProperty(String key) {
+        return p.get(key);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Order;
+import org.quantdirect.Quanter;
+import org.quantdirect.Tick;
+import org.quantdirect.Trade;
+import org.quantdirect.tools.LOG;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One quanter with its own feed, transaction and master, driven through the
+ * recorded days one day at a time, each day on a single thread. Nothing is
+ * shared with other sessions except the decoded records, which are read
+ * only. Equity is marked on every tick and trade for the drawdown.
+ * <p>
+ * A quanter that throws ends its own run, the later steps do nothing and the
+ * result carries the error.
+ */
+class SimSession {
+
+    private static final Object[] NONE = new Object[0];
+
+    private final Quanter q;
+    private final SimFeed feed;
+    private final SimTransaction tr;
+    private final SimMaster master;
+    private final Map<String, Tick> last;
+    private final FillModel model;
+    private Throwable error;
+    private LocalDate day;
+    private Object[] records;
+    private int position;
+    private int matched;
+    private long orders;
+    private long trades;
+    private long volume;
+    private double peak;
+    private double drawdown;
+
+    SimSession(Quanter quanter, FillModel fillModel) {
+        q = quanter;
+        model = fillModel;
+        feed = new SimFeed(this);
+        tr = new SimTransaction(this);
+        master = new SimMaster();
+        last = new HashMap<>();
+        records = NONE;
+    }
+
+    void start() {
+        step(() -> q.onStart(master));
+    }
+
+    void run(SweepData.Day d) {
+        step(() -> {
+            day = d.day;
+            records = d.records;
+            try {
+                matched = -1;
+                q.onOpen(tr, feed);
+                for (position = 0; position < records.length; ++position) {
+                    var r = records[position];
+                    if (r instanceof Tick) {
+                        var t = (Tick) r;
+                        match(position);
+                        feed.advance(t.getUpdateTimeNanos());
+                        feed.onTick(t);
+                        mark();
+                    } else {
+                        feed.onCandle((Candle) r);
+                    }
+                }
+                feed.onClose();
+                q.onClose();
+                tr.onClose();
+                mark();
+            } finally {
+                records = NONE;
+            }
+        });
+    }
+
+    void stop() {
+        step(q::onStop);
+    }
+
+    private void step(Runnable r) {
+        if (error != null) {
+            return;
+        }
+        try {
+            r.run();
+        } catch (Throwable throwable) {
+            LOG.write(throwable, this);
+            error = throwable;
+        }
+    }
+
+    /*
+     * The market runs ahead of the quanter while it blocks in a trade, the
+     * ticks it gets afterwards were matched already.
+     */
+    private void match(int index) {
+        while (matched < index) {
+            if (records[++matched] instanceof Tick) {
+                var t = (Tick) records[matched];
+                last.put(t.getInstrumentId(), t);
+                tr.onTick(t);
+            }
+        }
+    }
+
+    /*
+     * Matches the records that follow until the order is done or the day
+     * has no more records.
+     */
+    void await(CompletableFuture<Order> order) {
+        while (!order.isDone() && matched + 1 < records.length) {
+            match(matched + 1);
+        }
+    }
+
+    Tick last(String instrumentId) {
+        return last.get(instrumentId);
+    }
+
+    FillModel model() {
+        return model;
+    }
+
+    LocalDate tradingDay() {
+        return day;
+    }
+
+    Date getTradingDay() {
+        if (day == null) {
+            return null;
+        }
+        return Date.from(day.atStartOfDay().toInstant(ZoneOffset.ofHours(8)));
+    }
+
+    void onOrder(Order order) {
+        ++orders;
+    }
+
+    void onTrade(Trade trade) {
+        ++trades;
+        volume += trade.getQuantity();
+        master.onTrade(trade);
+        mark();
+    }
+
+    <P> SweepResult<P> result(P parameter) {
+        return new SweepResult<>(parameter, equity(), master.realized(), master.position(), orders, trades,
+                volume, drawdown, error);
+    }
+
+    private double equity() {
+        return master.realized() + master.unrealized(last);
+    }
+
+    private void mark() {
+        var e = equity();
+        peak = Math.max(peak, e);
+        drawdown = Math.max(drawdown, peak - e);
+    }
+}
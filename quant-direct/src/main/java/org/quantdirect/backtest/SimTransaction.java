@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Basket;
+import org.quantdirect.Direction;
+import org.quantdirect.Order;
+import org.quantdirect.OrderHandler;
+import org.quantdirect.Tick;
+import org.quantdirect.Trade;
+import org.quantdirect.Transaction;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.TOOLS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transaction of one simulated quanter. Orders are matched by the sweep's
+ * {@link FillModel}, first against the last tick when they are sent, then
+ * they rest and are matched against every later tick as the session replays
+ * it. An order still working when its timeout has passed in simulated time
+ * is deleted and fails as a live order left unfilled would, the rest are
+ * deleted at the end of the day.
+ */
+class SimTransaction implements Transaction {
+
+    private final SimSession s;
+    private final List<Working> w;
+    private boolean matching;
+
+    SimTransaction(SimSession session) {
+        s = session;
+        w = new ArrayList<>();
+    }
+
+    /*
+     * A live trade blocks the quanter while the market goes on, so the
+     * session matches the ticks that follow up to the timeout before the
+     * quanter gets them, as it would get them after a blocking call. A
+     * timeout of zero or less only matches the last tick. Called from an
+     * order handler while ticks are being matched, the order also only
+     * matches the last tick.
+     */
+    @Override
+    public void trade(Order order, int timeout, TimeUnit unit) throws TimeoutException, IOException {
+        var f = send(order, null, timeout, unit);
+        if (timeout > 0 && !matching) {
+            s.await(f);
+        }
+        if (!f.isDone()) {
+            expire(find(f), true);
+        }
+        try {
+            f.join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) exception.getCause();
+            }
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
+            }
+            throw new IOException(exception.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Order> tradeAsync(Order order, int timeout, TimeUnit unit) {
+        return tradeAsync(order, null, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<Order> tradeAsync(Order order, OrderHandler handler, int timeout, TimeUnit unit) {
+        return send(order, handler, timeout, unit);
+    }
+
+    /*
+     * Every leg rests on its own as if it had been sent alone.
+     */
+    @Override
+    public Basket tradeBasket(Collection<Order> orders, OrderHandler handler, int timeout, TimeUnit unit) {
+        var o = List.copyOf(orders);
+        var fs = new ArrayList<CompletableFuture<Order>>(o.size());
+        for (var order : o) {
+            fs.add(send(order, handler, timeout, unit));
+        }
+        var f = new CompletableFuture<List<Order>>();
+        CompletableFuture.allOf(fs.toArray(new CompletableFuture[0])).whenComplete((v, t) -> {
+            for (var x : fs) {
+                if (x.isCompletedExceptionally()) {
+                    x.whenComplete((r, e) -> f.completeExceptionally(e));
+                    return;
+                }
+            }
+            f.complete(o);
+        });
+        return new SimBasket(o, f);
+    }
+
+    private CompletableFuture<Order> send(Order order, OrderHandler handler, int timeout, TimeUnit unit) {
+        var f = new CompletableFuture<Order>();
+        if (order == null) {
+            f.completeExceptionally(new IOException("Trade null order."));
+            return f;
+        }
+        if (order.getOrderId() == null) {
+            order.setOrderId(TOOLS.nextId());
+        }
+        s.onOrder(order);
+        var t = s.last(order.getInstrumentId());
+        if (t == null) {
+            reject(order, handler, f, "[0]No market data for " + order.getInstrumentId() + ".");
+            return f;
+        }
+        order.setTradingDay(s.tradingDay());
+        order.setUpdateTime(t.getUpdateTime());
+        var m = s.model();
+        var st = new FillState(order.getDirection() == Direction.BUY, order.getPrice(),
+                order.getQuantity() - order.getTradedQuantity(), t.getUpdateTimeNanos());
+        if (!m.enter(st, t)) {
+            reject(order, handler, f, "[2]Price out of limits: " + order.getPrice() + ".");
+            return f;
+        }
+        var x = new Working(order, handler, f, st, until(t, timeout, unit));
+        order.setStatus(Order.Status.ACCEPTED);
+        notify(handler, order, null);
+        w.add(x);
+        match(x, t, Long.MAX_VALUE);
+        if (x.state.remaining <= 0) {
+            w.remove(x);
+        }
+        return f;
+    }
+
+    /*
+     * Without a timeout, or with ticks that carry no time, the order works
+     * until the end of the day.
+     */
+    private static long until(Tick tick, int timeout, TimeUnit unit) {
+        if (timeout > 0 && tick.getUpdateTimeNanos() != 0) {
+            return tick.getUpdateTimeNanos() + unit.toNanos(timeout);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void reject(Order order, OrderHandler handler, CompletableFuture<Order> f, String message) {
+        order.setStatus(Order.Status.REJECTED);
+        order.setStatusMessage(message);
+        notify(handler, order, null);
+        f.complete(order);
+    }
+
+    /*
+     * Called by the session for every replayed tick before the quanter gets
+     * it. Orders whose timeout has passed by the tick's time are deleted
+     * first, the others share the volume quoted on their side in the order
+     * they were sent. Orders sent from a handler meanwhile rest from the
+     * next tick on, they were matched against this one when sent.
+     */
+    void onTick(Tick tick) {
+        if (w.isEmpty()) {
+            return;
+        }
+        matching = true;
+        try {
+            var now = tick.getUpdateTimeNanos();
+            var buy = tick.getAskVolume() > 0 ? tick.getAskVolume() : Long.MAX_VALUE;
+            var sell = tick.getBidVolume() > 0 ? tick.getBidVolume() : Long.MAX_VALUE;
+            for (int i = 0, n = w.size(); i < n; ++i) {
+                var x = w.get(i);
+                if (x.f.isDone()) {
+                    continue;
+                }
+                if (now != 0 && now > x.until) {
+                    expire(x, true);
+                    continue;
+                }
+                if (!x.order.getInstrumentId().equals(tick.getInstrumentId())) {
+                    continue;
+                }
+                var used = match(x, tick, x.state.buy ? buy : sell);
+                if (x.state.buy) {
+                    buy -= used;
+                } else {
+                    sell -= used;
+                }
+            }
+        } finally {
+            matching = false;
+            w.removeIf(x -> x.f.isDone());
+        }
+    }
+
+    /*
+     * Deletes what is still working at the end of the day, the exchange
+     * doesn't keep orders overnight.
+     */
+    void onClose() {
+        for (var x : List.copyOf(w)) {
+            expire(x, false);
+        }
+        w.clear();
+    }
+
+    private Working find(CompletableFuture<Order> f) {
+        for (var x : w) {
+            if (x.f == f) {
+                return x;
+            }
+        }
+        throw new IllegalStateException("Order isn't working.");
+    }
+
+    private void expire(Working x, boolean timeout) {
+        if (x.f.isDone()) {
+            return;
+        }
+        x.order.setStatus(Order.Status.DELETED);
+        notify(x.handler, x.order, null);
+        if (timeout) {
+            x.f.completeExceptionally(new TimeoutException("Create order timeout."));
+        } else {
+            x.f.complete(x.order);
+        }
+    }
+
+    /*
+     * Returns the units filled by crossing the opposite side.
+     */
+    private long match(Working x, Tick tick, long available) {
+        var st = x.state;
+        var n = Math.min(st.remaining, s.model().match(st, tick, available));
+        if (n <= 0) {
+            return 0;
+        }
+        fill(x, n, tick);
+        if (st.remaining <= 0) {
+            x.order.setStatus(Order.Status.ALL_TRADED);
+            notify(x.handler, x.order, null);
+            x.f.complete(x.order);
+        }
+        return st.crossed ? n : 0;
+    }
+
+    private void notify(OrderHandler handler, Order order, Trade trade) {
+        if (handler == null) {
+            return;
+        }
+        try {
+            if (trade != null) {
+                handler.onTrade(trade);
+            } else {
+                handler.onOrder(order);
+            }
+        } catch (Throwable throwable) {
+            LOG.write(throwable, this);
+        }
+    }
+
+    private void fill(Working x, long quantity, Tick tick) {
+        var order = x.order;
+        var st = x.state;
+        st.remaining -= quantity;
+        var r = new Trade();
+        r.setTradeId(TOOLS.nextId());
+        r.setOrderId(order.getOrderId());
+        r.setInstrumentId(order.getInstrumentId());
+        r.setExchangeId(order.getExchangeId());
+        r.setPrice(st.price);
+        r.setQuantity(quantity);
+        r.setDirection(order.getDirection());
+        r.setOffset(order.getOffset());
+        r.setTradingDay(order.getTradingDay());
+        r.setUpdateTime(tick.getUpdateTime());
+        order.setTradedQuantity(order.getTradedQuantity() + quantity);
+        order.setUpdateTime(r.getUpdateTime());
+        s.onTrade(r);
+        notify(x.handler, order, r);
+    }
+
+    @Override
+    public Date getTradingDay() {
+        return s.getTradingDay();
+    }
+
+    private static class Working {
+
+        private final Order order;
+        private final OrderHandler handler;
+        private final CompletableFuture<Order> f;
+        private final FillState state;
+        private final long until;
+
+        Working(Order order, OrderHandler handler, CompletableFuture<Order> f, FillState state, long until) {
+            this.order = order;
+            this.handler = handler;
+            this.f = f;
+            this.state = state;
+            this.until = until;
+        }
+    }
+
+    private static class SimBasket implements Basket {
+
+        private final List<Order> o;
+        private final CompletableFuture<List<Order>> f;
+
+        SimBasket(List<Order> orders, CompletableFuture<List<Order>> future) {
+            o = orders;
+            f = future;
+        }
+
+        @Override
+        public List<Order> getOrders() {
+            return o;
+        }
+
+        @Override
+        public long getQuantity() {
+            return o.stream().mapToLong(Order::getQuantity).sum();
+        }
+
+        @Override
+        public long getTradedQuantity() {
+            return o.stream().mapToLong(Order::getTradedQuantity).sum();
+        }
+
+        @Override
+        public boolean isDone() {
+            return f.isDone();
+        }
+
+        @Override
+        public CompletableFuture<List<Order>> getFuture() {
+            return f;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.journal.JournalReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Journal days of a sweep, decoded one day at a time. A decoded day is
+ * replayed to every session before it is dropped, so only the day being
+ * replayed and the next one being decoded are held in memory. Sessions only
+ * read the records.
+ */
+class SweepData {
+
+    private final List<File> f;
+
+    SweepData(List<File> files) {
+        f = List.copyOf(files);
+    }
+
+    int days() {
+        return f.size();
+    }
+
+    Day decode(int index) throws IOException {
+        var file = f.get(index);
+        var r = new ArrayList<>();
+        try (var in = new JournalReader(file)) {
+            while (in.next()) {
+                if (in.isTick()) {
+                    r.add(in.tick());
+                } else if (in.isCandle()) {
+                    r.add(in.candle());
+                }
+            }
+        }
+        return new Day(JournalReader.tradingDay(file), r.toArray());
+    }
+
+    static class Day {
+
+        final LocalDate day;
+        final Object[] records;
+
+        Day(LocalDate day, Object[] records) {
+            this.day = day;
+            this.records = records;
+        }
+    }
+}
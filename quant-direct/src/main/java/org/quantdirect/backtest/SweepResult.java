@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+/**
+ * Outcome of one parameter set. Profit is counted in price points per unit,
+ * open contracts are marked at the last price of their instrument.
+ */
+public class SweepResult<P> {
+
+    private final P parameter;
+    private final double profit;
+    private final double realizedProfit;
+    private final long position;
+    private final long orders;
+    private final long trades;
+    private final long volume;
+    private final double maxDrawdown;
+    private final Throwable error;
+
+    SweepResult(P parameter, double profit, double realizedProfit, long position, long orders, long trades,
+            long volume, double maxDrawdown, Throwable error) {
+        this.parameter = parameter;
+        this.profit = profit;
+        this.realizedProfit = realizedProfit;
+        this.position = position;
+        this.orders = orders;
+        this.trades = trades;
+        this.volume = volume;
+        this.maxDrawdown = maxDrawdown;
+        this.error = error;
+    }
+
+    public P getParameter() {
+        return parameter;
+    }
+
+    public double getProfit() {
+        return profit;
+    }
+
+    public double getRealizedProfit() {
+        return realizedProfit;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getOrders() {
+        return orders;
+    }
+
+    public long getTrades() {
+        return trades;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public double getMaxDrawdown() {
+        return maxDrawdown;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "SweepResult{parameter=" + parameter + ", profit=" + profit + ", realizedProfit=" + realizedProfit
+               + ", position=" + position + ", orders=" + orders + ", trades=" + trades + ", volume=" + volume
+               + ", maxDrawdown=" + maxDrawdown + (error == null ? "" : ", error=" + error) + "}";
+    }
+}
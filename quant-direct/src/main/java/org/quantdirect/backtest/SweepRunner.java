@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.backtest;
+
+import org.quantdirect.Quanter;
+import org.quantdirect.journal.JournalReader;
+import org.quantdirect.tools.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs one quanter class over recorded journals with many parameter sets.
+ * <p>
+ * Each journal day is decoded once and the same records are replayed to
+ * every parameter set before the day is dropped, while the next day is
+ * decoded, so memory holds about two days whatever the range. Each set gets a
+ * fresh quanter with its own simulated feed, transaction and master and
+ * replays a day as one task on a fork/join pool, so the sets share nothing
+ * mutable and the sweep scales with the cores. The only platform state they
+ * touch is the thread-safe table that interns instrument ids for the candle
+ * aggregators.
+ * <p>
+ * The ticks and candles handed to the quanters are shared between the
+ * sessions and must not be modified.
+ */
+public class SweepRunner {
+
+    private final File dir;
+    private LocalDate from;
+    private LocalDate to;
+    private int parallelism;
+    private FillModel model;
+
+    public SweepRunner(File journalDirectory) {
+        dir = journalDirectory;
+        from = LocalDate.MIN;
+        to = LocalDate.MAX;
+        parallelism = Runtime.getRuntime().availableProcessors();
+        model = new CrossingFillModel();
+    }
+
+    public synchronized void setRange(LocalDate from, LocalDate to) {
+        this.from = from == null ? LocalDate.MIN : from;
+        this.to = to == null ? LocalDate.MAX : to;
+    }
+
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism + ".");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public synchronized void setFillModel(FillModel model) {
+        if (model != null) {
+            this.model = model;
+        }
+    }
+
+    /**
+     * Runs every parameter set and returns the results in the order of the
+     * parameters. A quanter that throws ends its own run only, its result
+     * carries the error and the statistics up to that point.
+     */
+    public synchronized <P> List<SweepResult<P>> run(Collection<? extends P> parameters,
+            Function<? super P, ? extends Quanter> factory) throws IOException, InterruptedException {
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            var data = new SweepData(JournalReader.files(dir, from, to));
+            var ps = new ArrayList<P>(parameters);
+            var ss = new ArrayList<SimSession>(ps.size());
+            var errors = new ArrayList<Throwable>(ps.size());
+            for (var p : ps) {
+                try {
+                    ss.add(new SimSession(factory.apply(p), model));
+                    errors.add(null);
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                    ss.add(null);
+                    errors.add(throwable);
+                }
+            }
+            each(pool, ss, SimSession::start);
+            long n = 0;
+            var next = data.days() > 0 ? pool.submit(() -> data.decode(0)) : null;
+            for (int i = 0; i < data.days(); ++i) {
+                final var d = next.get();
+                final var k = i + 1;
+                next = k < data.days() ? pool.submit(() -> data.decode(k)) : null;
+                n += d.records.length;
+                each(pool, ss, s -> s.run(d));
+            }
+            each(pool, ss, SimSession::stop);
+            LOG.write("Replayed " + n + " records of " + data.days() + " days.", this);
+            var r = new ArrayList<SweepResult<P>>(ps.size());
+            for (int i = 0; i < ps.size(); ++i) {
+                var s = ss.get(i);
+                r.add(s == null ? new SweepResult<>(ps.get(i), 0, 0, 0, 0, 0, 0, 0, errors.get(i))
+                        : s.result(ps.get(i)));
+            }
+            return r;
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
+            }
+            throw new IOException("Sweep failed.", exception.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Runs one step of every session as its own task and returns when all of
+     * them are done.
+     */
+    private static void each(ForkJoinPool pool, List<SimSession> sessions, Consumer<SimSession> step)
+            throws InterruptedException, ExecutionException {
+        var tasks = new ArrayList<Callable<Void>>(sessions.size());
+        for (var s : sessions) {
+            if (s != null) {
+                tasks.add(() -> {
+                    step.accept(s);
+                    return null;
+                });
+            }
+        }
+        for (var f : pool.invokeAll(tasks)) {
+            f.get();
+        }
+    }
+}
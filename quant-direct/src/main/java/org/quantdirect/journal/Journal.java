@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.journal;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+import java.io.File;
+
+/**
+ * Append-only binary journal of the market data seen by the platform.
+ * <p>
+ * Records are written into memory mapped files, one file per trading day,
+ * and appending never blocks the caller on I/O, so it is safe to call from
+ * the dispatch threads.
+ * <p>
+ * Instrument and record ids up to 31 chars and exchange ids up to 15, all
+ * Latin-1, are stored as they are. A record with a longer name is not
+ * stored, it is counted and logged instead.
+ */
+public abstract class Journal implements AutoCloseable {
+
+    public static Journal open(File directory) {
+        return new QdJournal(directory);
+    }
+
+    public abstract void append(Tick tick);
+
+    public abstract void append(Candle candle);
+
+    public abstract void flush();
+
+    @Override
+    public abstract void close();
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.journal;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.quantdirect.journal.QdJournalFormat.*;
+
+/**
+ * Sequential reader of one journal file. Records come back in the order they
+ * were appended, which keeps the order of every instrument, and the reader
+ * stops behind the last claimed slot. A claimed slot that is still empty is
+ * waited for a moment, as its writer is normally filling it, and skipped if
+ * it stays empty.
+ */
+public class JournalReader implements AutoCloseable {
+
+    private static final long WAIT_NANOS = 10_000_000L;
+
+    private final FileChannel ch;
+    private final long size;
+    private final QdNames names;
+    private final MappedByteBuffer head;
+    private MappedByteBuffer b;
+    private int segment;
+    private long position;
+    private int type;
+    private long skipped;
+
+    public JournalReader(File file) throws IOException {
+        ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        size = ch.size();
+        names = new QdNames();
+        segment = -1;
+        position = 0;
+        if (size < RECORD) {
+            ch.close();
+            throw new IOException("Not a journal file: " + file.getAbsolutePath() + ".");
+        }
+        head = ch.map(FileChannel.MapMode.READ_ONLY, 0, RECORD);
+        head.order(ByteOrder.LITTLE_ENDIAN);
+        if (!checkHeader(head)) {
+            ch.close();
+            throw new IOException("Not a journal file: " + file.getAbsolutePath() + ".");
+        }
+    }
+
+    public static List<File> files(File directory) {
+        return files(directory, LocalDate.MIN, LocalDate.MAX);
+    }
+
+    public static List<File> files(File directory, LocalDate from, LocalDate to) {
+        var r = new ArrayList<File>();
+        var a = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (a == null) {
+            return r;
+        }
+        Arrays.sort(a, Comparator.comparing(File::getName));
+        for (var f : a) {
+            var d = tradingDay(f);
+            if (d != null && !d.isBefore(from) && !d.isAfter(to)) {
+                r.add(f);
+            }
+        }
+        return r;
+    }
+
+    public static LocalDate tradingDay(File file) {
+        var n = file.getName();
+        if (n.length() != 8 + SUFFIX.length()) {
+            return null;
+        }
+        try {
+            return LocalDate.of(Integer.parseInt(n.substring(0, 4)), Integer.parseInt(n.substring(4, 6)),
+                    Integer.parseInt(n.substring(6, 8)));
+        } catch (RuntimeException exception) {
+            return null;
+        }
+    }
+
+    public boolean next() throws IOException {
+        for (var p = position == 0 ? RECORD : position + RECORD; p + RECORD <= size; p += RECORD) {
+            var t = type(map((int) (p >>> SHIFT)), offset(p));
+            if (t == EMPTY) {
+                if (p >= claimed(head)) {
+                    break;
+                }
+                t = await(p);
+            }
+            if (t == TICK || t == CANDLE) {
+                position = p;
+                type = t;
+                return true;
+            }
+            position = p;
+            ++skipped;
+        }
+        type = EMPTY;
+        return false;
+    }
+
+    /**
+     * Returns the number of claimed slots skipped so far because they were
+     * never filled.
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    private int await(long p) {
+        var d = System.nanoTime() + WAIT_NANOS;
+        var t = type(b, offset(p));
+        while (t == EMPTY && System.nanoTime() < d) {
+            Thread.yield();
+            t = type(b, offset(p));
+        }
+        return t;
+    }
+
+    public boolean isTick() {
+        return type == TICK;
+    }
+
+    public boolean isCandle() {
+        return type == CANDLE;
+    }
+
+    public long updateTimeNanos() {
+        return QdJournalFormat.updateTime(b, offset(position));
+    }
+
+    public Tick tick() {
+        var t = new Tick();
+        readTick(t);
+        return t;
+    }
+
+    public void readTick(Tick tick) {
+        if (type != TICK) {
+            throw new IllegalStateException("Current record is not a tick.");
+        }
+        read(b, offset(position), tick, names);
+    }
+
+    public Candle candle() {
+        if (type != CANDLE) {
+            throw new IllegalStateException("Current record is not a candle.");
+        }
+        var c = new Candle();
+        read(b, offset(position), c, names);
+        return c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    private static int offset(long p) {
+        return (int) (p & (SEGMENT - 1));
+    }
+
+    private MappedByteBuffer map(int i) throws IOException {
+        if (i != segment) {
+            var start = (long) i * SEGMENT;
+            b = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start));
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            segment = i;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.journal;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+import org.quantdirect.tools.CLOCK;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.quantdirect.journal.QdJournalFormat.*;
+
+/**
+ * Writers claim a record slot with one atomic add on the claimed end in the
+ * file header and fill it in place, so the dispatch threads never contend on
+ * a lock, and readers can tell a claimed slot from the end of the data.
+ * Files are only created and segments only mapped under the lock, which
+ * happens once per trading day and once per {@link QdJournalFormat#SEGMENT}
+ * bytes.
+ * <p>
+ * Mapped buffers are never truncated or unmapped by the journal, so a writer
+ * still holding a day that was just rolled over can't fault.
+ */
+class QdJournal extends Journal {
+
+    private final File dir;
+    private final TreeMap<Long, Day> days = new TreeMap<>();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile Day current;
+    private volatile boolean closed;
+
+    QdJournal(File directory) {
+        dir = directory;
+        try {
+            Files.createDirectories(dir.toPath());
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Can't create journal dir: " + dir.getAbsolutePath() + ".", exception);
+        }
+        METRICS.register("journal.records", records::sum);
+        METRICS.register("journal.dropped", dropped::sum);
+        METRICS.register("journal.rejected", rejected::sum);
+    }
+
+    @Override
+    public void append(Tick tick) {
+        var x = badName(tick);
+        if (x != null) {
+            reject(x);
+            return;
+        }
+        var d = day(tick.getTradingDayEpochDay());
+        if (d == null) {
+            dropped.increment();
+            return;
+        }
+        var p = d.claim();
+        var b = d.segment(p);
+        if (b == null) {
+            dropped.increment();
+            return;
+        }
+        write(b, (int) (p & (SEGMENT - 1)), tick);
+        records.increment();
+    }
+
+    @Override
+    public void append(Candle candle) {
+        var x = badName(candle);
+        if (x != null) {
+            reject(x);
+            return;
+        }
+        var t = candle.getTradingDay();
+        var d = day(t == null ? 0 : t.toEpochDay());
+        if (d == null) {
+            dropped.increment();
+            return;
+        }
+        var p = d.claim();
+        var b = d.segment(p);
+        if (b == null) {
+            dropped.increment();
+            return;
+        }
+        write(b, (int) (p & (SEGMENT - 1)), candle);
+        records.increment();
+    }
+
+    /*
+     * A record whose names can't be stored as they are isn't written, a
+     * replay would hand back other names. The first rejection is logged and
+     * then every ten thousandth.
+     */
+    private void reject(String name) {
+        rejected.increment();
+        var n = rejected.sum();
+        if (n == 1 || n % 10_000 == 0) {
+            LOG.write("Name doesn't fit the journal: " + name + ", " + n + " records rejected.", this);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        days.values().forEach(Day::force);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        current = null;
+        days.values().forEach(Day::close);
+        days.clear();
+        METRICS.unregister("journal.records");
+        METRICS.unregister("journal.dropped");
+        METRICS.unregister("journal.rejected");
+    }
+
+    private Day day(long epochDay) {
+        var c = current;
+        if (c != null && (epochDay == 0 || c.day == epochDay)) {
+            return c;
+        }
+        return roll(epochDay == 0 ? CLOCK.today().toEpochDay() : epochDay);
+    }
+
+    /*
+     * Late records of the previous trading day may still arrive from another
+     * partition after the roll, so the previous day stays open until the
+     * next one replaces it.
+     */
+    private synchronized Day roll(long epochDay) {
+        if (closed) {
+            return null;
+        }
+        var d = days.get(epochDay);
+        if (d != null) {
+            return d;
+        }
+        try {
+            d = new Day(new File(dir, fileName(epochDay)), epochDay);
+        } catch (IOException exception) {
+            LOG.write(exception, this);
+            return null;
+        }
+        days.put(epochDay, d);
+        while (days.size() > 2) {
+            var first = days.pollFirstEntry().getValue();
+            first.close();
+        }
+        var c = current;
+        if (c == null || c.day < epochDay) {
+            current = d;
+        }
+        return d;
+    }
+
+    private static class Day {
+
+        private final long day;
+        private final FileChannel ch;
+        private final MappedByteBuffer head;
+        private volatile MappedByteBuffer[] seg;
+
+        Day(File file, long day) throws IOException {
+            this.day = day;
+            this.ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.seg = new MappedByteBuffer[]{map(0)};
+            this.head = seg[0];
+            if (head.getInt(0) == 0) {
+                writeHeader(head);
+            } else if (!checkHeader(head)) {
+                ch.close();
+                throw new IOException("Not a journal file: " + file.getAbsolutePath() + ".");
+            } else {
+                recover();
+            }
+        }
+
+        long claim() {
+            return QdJournalFormat.claim(head);
+        }
+
+        /*
+         * Reopening a day after a restart continues behind the last claimed
+         * slot, and the slots claimed but never filled are marked skipped so
+         * readers don't wait on them. A file without the claimed end in its
+         * header ends behind its last record.
+         */
+        private void recover() throws IOException {
+            var end = claimed(head);
+            if (end == 0) {
+                end = last();
+            }
+            for (var p = (long) RECORD; p < end; p += RECORD) {
+                var b = mapped((int) (p >>> SHIFT));
+                var o = (int) (p & (SEGMENT - 1));
+                if (type(b, o) == EMPTY) {
+                    skip(b, o);
+                }
+            }
+            setClaimed(head, end);
+        }
+
+        private long last() throws IOException {
+            var end = (long) RECORD;
+            var size = ch.size();
+            for (var p = (long) RECORD; p + RECORD <= size; p += RECORD) {
+                if (type(mapped((int) (p >>> SHIFT)), (int) (p & (SEGMENT - 1))) != EMPTY) {
+                    end = p + RECORD;
+                }
+            }
+            return end;
+        }
+
+        MappedByteBuffer segment(long position) {
+            var i = (int) (position >>> SHIFT);
+            var s = seg;
+            if (i < s.length && s[i] != null) {
+                return s[i];
+            }
+            try {
+                return mapped(i);
+            } catch (IOException exception) {
+                LOG.write(exception, this);
+                return null;
+            }
+        }
+
+        private synchronized MappedByteBuffer mapped(int i) throws IOException {
+            var s = seg;
+            if (i >= s.length) {
+                s = Arrays.copyOf(s, Math.max(i + 1, s.length * 2));
+            }
+            if (s[i] == null) {
+                s[i] = map(i);
+            }
+            seg = s;
+            return s[i];
+        }
+
+        private MappedByteBuffer map(int i) throws IOException {
+            var b = ch.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT, SEGMENT);
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            return b;
+        }
+
+        synchronized void force() {
+            for (var b : seg) {
+                if (b != null) {
+                    b.force();
+                }
+            }
+        }
+
+        synchronized void close() {
+            force();
+            try {
+                ch.close();
+            } catch (IOException exception) {
+                LOG.write(exception, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.journal;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Tick;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Fixed binary layout of the market data journal.
+ * <p>
+ * A journal file holds one trading day. The first {@link #RECORD} bytes are
+ * the file header and every record after it takes exactly {@link #RECORD}
+ * bytes, so a record never straddles a mapped segment. The record type is
+ * the first int of a record and is written last with release semantics, it
+ * is the commit marker of the slot.
+ * <p>
+ * Writers claim slots by adding to the claimed end kept in the header, so a
+ * zero type below the claimed end is a slot still being written, or one its
+ * writer never filled. A journal reopening the file marks those slots
+ * {@link #SKIP}. Files written before the header kept the claimed end have
+ * zero there and end at the first zero type.
+ */
+final class QdJournalFormat {
+
+    static final int MAGIC = 0x51444a31;
+    static final int RECORD = 256;
+    static final int SHIFT = 26;
+    static final int SEGMENT = 1 << SHIFT;
+    static final int EMPTY = 0;
+    static final int TICK = 1;
+    static final int CANDLE = 2;
+    static final int SKIP = 3;
+    static final String SUFFIX = ".qdj";
+
+    private static final VarHandle TYPE = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle END = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final int CLAIMED = 8;
+    private static final ZoneOffset ZONE = ZoneOffset.ofHours(8);
+
+    private static final int INSTRUMENT = 8;
+    private static final int EXCHANGE = 40;
+    private static final int ID = 56;
+    private static final int DATA = 88;
+    private static final int NAME_INSTRUMENT = 32;
+    private static final int NAME_EXCHANGE = 16;
+    private static final int NAME_ID = 32;
+
+    private QdJournalFormat() {
+    }
+
+    static String fileName(long epochDay) {
+        var d = LocalDate.ofEpochDay(epochDay);
+        return String.format("%04d%02d%02d", d.getYear(), d.getMonthValue(), d.getDayOfMonth()) + SUFFIX;
+    }
+
+    static int type(ByteBuffer b, int offset) {
+        return (int) TYPE.getAcquire(b, offset);
+    }
+
+    static void skip(ByteBuffer b, int offset) {
+        TYPE.setRelease(b, offset, SKIP);
+    }
+
+    static void writeHeader(ByteBuffer b) {
+        b.putInt(4, RECORD);
+        b.putLong(CLAIMED, RECORD);
+        b.putInt(0, MAGIC);
+    }
+
+    /*
+     * Returns the position of the claimed slot.
+     */
+    static long claim(ByteBuffer header) {
+        return (long) END.getAndAdd(header, CLAIMED, (long) RECORD);
+    }
+
+    static long claimed(ByteBuffer header) {
+        return (long) END.getAcquire(header, CLAIMED);
+    }
+
+    static void setClaimed(ByteBuffer header, long end) {
+        END.setRelease(header, CLAIMED, end);
+    }
+
+    static boolean checkHeader(ByteBuffer b) {
+        return b.getInt(0) == MAGIC && b.getInt(4) == RECORD;
+    }
+
+    static void write(ByteBuffer b, int o, Tick t) {
+        putName(b, o + INSTRUMENT, NAME_INSTRUMENT, t.getInstrumentId());
+        putName(b, o + EXCHANGE, NAME_EXCHANGE, t.getExchangeId());
+        putName(b, o + ID, NAME_ID, t.getTickId());
+        var p = o + DATA;
+        b.putDouble(p, t.getOpenPrice());
+        b.putDouble(p + 8, t.getHighPrice());
+        b.putDouble(p + 16, t.getLowPrice());
+        b.putDouble(p + 24, t.getClosePrice());
+        b.putDouble(p + 32, t.getPreClosePrice());
+        b.putDouble(p + 40, t.getSettlePrice());
+        b.putDouble(p + 48, t.getPreSettlePrice());
+        b.putDouble(p + 56, t.getAskPrice());
+        b.putDouble(p + 64, t.getBidPrice());
+        b.putDouble(p + 72, t.getUpperLimitPrice());
+        b.putDouble(p + 80, t.getLowerLimitPrice());
+        b.putLong(p + 88, t.getAskVolume());
+        b.putLong(p + 96, t.getBidVolume());
+        b.putLong(p + 104, t.getTradeVolume());
+        b.putLong(p + 112, t.getOpenInterest());
+        b.putLong(p + 120, t.getPreOpenInterest());
+        b.putLong(p + 128, t.getTradingDayEpochDay());
+        b.putLong(p + 136, t.getUpdateTimeNanos());
+        TYPE.setRelease(b, o, TICK);
+    }
+
+    static void write(ByteBuffer b, int o, Candle c) {
+        putName(b, o + INSTRUMENT, NAME_INSTRUMENT, c.getInstrumentId());
+        putName(b, o + EXCHANGE, NAME_EXCHANGE, c.getExchangeId());
+        putName(b, o + ID, NAME_ID, c.getCandleId());
+        var p = o + DATA;
+        b.putDouble(p, c.getOpenPrice());
+        b.putDouble(p + 8, c.getHighPrice());
+        b.putDouble(p + 16, c.getLowPrice());
+        b.putDouble(p + 24, c.getClosePrice());
+        b.putLong(p + 32, c.getTradeVolume());
+        b.putLong(p + 40, c.getOpenInterest());
+        b.putLong(p + 48, c.getMinutes());
+        b.putLong(p + 56, c.getTradingDay() == null ? 0 : c.getTradingDay().toEpochDay());
+        b.putLong(p + 64, nanos(c.getUpdateTime()));
+        TYPE.setRelease(b, o, CANDLE);
+    }
+
+    static void read(ByteBuffer b, int o, Tick t, QdNames names) {
+        t.setInstrumentId(names.get(b, o + INSTRUMENT, 0));
+        t.setExchangeId(names.get(b, o + EXCHANGE, 1));
+        t.setTickId(names.get(b, o + ID, 2));
+        var p = o + DATA;
+        t.setOpenPrice(b.getDouble(p));
+        t.setHighPrice(b.getDouble(p + 8));
+        t.setLowPrice(b.getDouble(p + 16));
+        t.setClosePrice(b.getDouble(p + 24));
+        t.setPreClosePrice(b.getDouble(p + 32));
+        t.setSettlePrice(b.getDouble(p + 40));
+        t.setPreSettlePrice(b.getDouble(p + 48));
+        t.setAskPrice(b.getDouble(p + 56));
+        t.setBidPrice(b.getDouble(p + 64));
+        t.setUpperLimitPrice(b.getDouble(p + 72));
+        t.setLowerLimitPrice(b.getDouble(p + 80));
+        t.setAskVolume(b.getLong(p + 88));
+        t.setBidVolume(b.getLong(p + 96));
+        t.setTradeVolume(b.getLong(p + 104));
+        t.setOpenInterest(b.getLong(p + 112));
+        t.setPreOpenInterest(b.getLong(p + 120));
+        t.setTradingDayEpochDay(b.getLong(p + 128));
+        t.setUpdateTimeNanos(b.getLong(p + 136));
+    }
+
+    static void read(ByteBuffer b, int o, Candle c, QdNames names) {
+        c.setInstrumentId(names.get(b, o + INSTRUMENT, 0));
+        c.setExchangeId(names.get(b, o + EXCHANGE, 1));
+        c.setCandleId(names.get(b, o + ID, 2));
+        var p = o + DATA;
+        c.setOpenPrice(b.getDouble(p));
+        c.setHighPrice(b.getDouble(p + 8));
+        c.setLowPrice(b.getDouble(p + 16));
+        c.setClosePrice(b.getDouble(p + 24));
+        c.setTradeVolume(b.getLong(p + 32));
+        c.setOpenInterest(b.getLong(p + 40));
+        c.setMinutes(b.getLong(p + 48));
+        var d = b.getLong(p + 56);
+        c.setTradingDay(d == 0 ? null : LocalDate.ofEpochDay(d));
+        var n = b.getLong(p + 64);
+        c.setUpdateTime(n == 0 ? null : time(n));
+    }
+
+    static long tradingDay(ByteBuffer b, int o) {
+        var p = o + DATA;
+        return type(b, o) == TICK ? b.getLong(p + 128) : b.getLong(p + 56);
+    }
+
+    static long updateTime(ByteBuffer b, int o) {
+        var p = o + DATA;
+        return type(b, o) == TICK ? b.getLong(p + 136) : b.getLong(p + 64);
+    }
+
+    static long nanos(LocalDateTime t) {
+        if (t == null) {
+            return 0;
+        }
+        return t.toEpochSecond(ZONE) * 1_000_000_000L + t.getNano();
+    }
+
+    static LocalDateTime time(long nanos) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                (int) Math.floorMod(nanos, 1_000_000_000L), ZONE);
+    }
+
+    /*
+     * Returns the first name of the record that its field can't hold, or
+     * null. A name longer than its field or with a char above Latin-1 would
+     * come back changed from a replay.
+     */
+    static String badName(Tick t) {
+        return badName(t.getInstrumentId(), t.getExchangeId(), t.getTickId());
+    }
+
+    static String badName(Candle c) {
+        return badName(c.getInstrumentId(), c.getExchangeId(), c.getCandleId());
+    }
+
+    private static String badName(String instrument, String exchange, String id) {
+        if (!fits(instrument, NAME_INSTRUMENT)) {
+            return instrument;
+        }
+        if (!fits(exchange, NAME_EXCHANGE)) {
+            return exchange;
+        }
+        return fits(id, NAME_ID) ? null : id;
+    }
+
+    private static boolean fits(String s, int width) {
+        if (s == null) {
+            return true;
+        }
+        if (s.length() > width - 1) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            if (s.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putName(ByteBuffer b, int o, int width, String s) {
+        var n = s == null ? 0 : s.length();
+        b.put(o, (byte) n);
+        for (int i = 0; i < n; ++i) {
+            b.put(o + 1 + i, (byte) s.charAt(i));
+        }
+    }
+
+    static int nameLength(ByteBuffer b, int o) {
+        return b.get(o) & 0xff;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.journal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the fixed width names of a record and hands back the previous
+ * string of the same slot when the bytes are unchanged, so replaying a long
+ * run of one instrument doesn't allocate a string per record.
+ */
+final class QdNames {
+
+    private final String[] last = new String[3];
+
+    String get(ByteBuffer b, int o, int slot) {
+        var n = QdJournalFormat.nameLength(b, o);
+        var s = last[slot];
+        if (s != null && same(b, o, n, s)) {
+            return s;
+        }
+        var c = new char[n];
+        for (int i = 0; i < n; ++i) {
+            c[i] = (char) (b.get(o + 1 + i) & 0xff);
+        }
+        return last[slot] = new String(c);
+    }
+
+    private static boolean same(ByteBuffer b, int o, int n, String s) {
+        if (s.length() != n) {
+            return false;
+        }
+        for (int i = 0; i < n; ++i) {
+            if ((b.get(o + 1 + i) & 0xff) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
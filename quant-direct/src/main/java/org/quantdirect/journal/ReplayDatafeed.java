@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.journal;
+
+import org.quantdirect.Datafeed;
+import org.quantdirect.DatafeedListener;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.tools.CLOCK;
+import org.quantdirect.tools.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Datafeed that plays recorded journals back through the platform.
+ * <p>
+ * Every trading day in the range is replayed as one session: the listener is
+ * opened, the day's ticks and candles go to the subscribed handlers in the
+ * recorded order, then the listener is closed. Quanters subscribe in
+ * {@code onOpen} as they do with a live feed, and records of instruments
+ * nobody subscribed are skipped.
+ * <p>
+ * While a replay runs it installs a virtual {@link CLOCK}. At speed zero the
+ * records are sent as fast as the handlers take them and the clock jumps to
+ * the time of each record. At a positive speed the clock runs that many times
+ * faster than the wall clock and each record waits for its time, except that
+ * the gap between two days isn't waited for.
+ */
+public class ReplayDatafeed implements Datafeed {
+
+    private final File dir;
+    private final Map<String, MarketHandler> sub;
+    private volatile LocalDate from;
+    private volatile LocalDate to;
+    private volatile double speed;
+    private volatile LocalDate day;
+    private volatile long now;
+    private volatile long base;
+    private volatile long wall;
+    private volatile boolean running;
+    private Thread thread;
+    private DatafeedListener listener;
+
+    public ReplayDatafeed(File directory) {
+        dir = directory;
+        sub = new ConcurrentHashMap<>();
+        from = LocalDate.MIN;
+        to = LocalDate.MAX;
+        speed = 0;
+    }
+
+    public void setRange(LocalDate from, LocalDate to) {
+        this.from = from == null ? LocalDate.MIN : from;
+        this.to = to == null ? LocalDate.MAX : to;
+    }
+
+    /**
+     * Sets how many times faster than real time the records are replayed,
+     * zero or less replays at full speed.
+     */
+    public void setSpeed(double speed) {
+        this.speed = Math.max(0, speed);
+    }
+
+    @Override
+    public void subscribe(String instrumentId, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            throw new IOException("Subscribe null instrument or handler.");
+        }
+        sub.put(instrumentId, handler);
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId) throws IOException {
+        if (instrumentId == null) {
+            throw new IOException("Unsubscribe null instrument.");
+        }
+        sub.remove(instrumentId);
+    }
+
+    @Override
+    public synchronized void start(DatafeedListener listener) {
+        if (thread != null) {
+            throw new IllegalStateException("Replay is running.");
+        }
+        this.listener = listener;
+        running = true;
+        CLOCK.use(this::clock);
+        thread = new Thread(this::run, "QD-REPLAY");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            running = false;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until the replay has played every day in the range or was
+     * stopped.
+     */
+    public void await() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    @Override
+    public Date getTradingDay() {
+        var d = day;
+        if (d == null) {
+            return null;
+        }
+        return Date.from(d.atStartOfDay().toInstant(ZoneOffset.ofHours(8)));
+    }
+
+    private long clock() {
+        var s = speed;
+        var w = wall;
+        if (s <= 0 || w == 0) {
+            return now;
+        }
+        return base + (long) ((System.nanoTime() - w) * s);
+    }
+
+    private void run() {
+        try {
+            listener.onStart();
+            for (var f : JournalReader.files(dir, from, to)) {
+                if (!running) {
+                    break;
+                }
+                day = JournalReader.tradingDay(f);
+                replay(f);
+            }
+        } catch (Throwable throwable) {
+            LOG.write(throwable, this);
+        } finally {
+            try {
+                listener.onStop();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+            CLOCK.reset();
+            synchronized (this) {
+                thread = null;
+                running = false;
+            }
+        }
+    }
+
+    private void replay(File file) throws IOException {
+        try (var r = new JournalReader(file)) {
+            if (!r.next()) {
+                return;
+            }
+            now = r.updateTimeNanos();
+            base = now;
+            wall = System.nanoTime();
+            listener.onOpen();
+            do {
+                var t = r.updateTimeNanos();
+                if (t != 0) {
+                    pace(t);
+                }
+                if (r.isTick()) {
+                    var tick = r.tick();
+                    var h = sub.get(tick.getInstrumentId());
+                    if (h != null) {
+                        h.onTick(tick);
+                    }
+                } else if (r.isCandle()) {
+                    var candle = r.candle();
+                    var h = sub.get(candle.getInstrumentId());
+                    if (h != null) {
+                        h.onCandle(candle);
+                    }
+                }
+            } while (running && r.next());
+            listener.onClose();
+        } finally {
+            wall = 0;
+        }
+    }
+
+    private void pace(long time) {
+        var s = speed;
+        if (s > 0) {
+            var due = wall + (long) ((time - base) / s);
+            long d;
+            while (running && (d = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(d);
+            }
+        }
+        if (time > now) {
+            now = time;
+        }
+    }
+}
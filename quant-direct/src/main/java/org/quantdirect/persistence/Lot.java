@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.persistence;
+
+import org.quantdirect.Contract;
+import org.quantdirect.Trade;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Contracts opened by one trade, stored as one record instead of one per
+ * unit. The contract describes every unit of the lot, its id is the lot's.
+ */
+public class Lot {
+    private final Contract c;
+    private final long q;
+    private final boolean u;
+
+    public Lot(Contract contract, long quantity) {
+        this(contract, quantity, false);
+    }
+
+    private Lot(Contract contract, long quantity, boolean unit) {
+        c = contract;
+        q = quantity;
+        u = unit;
+    }
+
+    /**
+     * Returns a contract that was stored on its own, before contracts were
+     * stored in lots. Its id names its only unit.
+     */
+    public static Lot unit(Contract contract) {
+        return new Lot(contract, 1, true);
+    }
+
+    /**
+     * Returns the lot an opening trade creates.
+     */
+    public static Lot open(Trade trade, String contractId) {
+        var c = new Contract();
+        c.setContractId(contractId);
+        c.setInstrumentId(trade.getInstrumentId());
+        c.setExchangeId(trade.getExchangeId());
+        c.setDirection(trade.getDirection());
+        c.setOpenPrice(trade.getPrice());
+        c.setTradingDay(trade.getTradingDay());
+        c.setTradeId(trade.getTradeId());
+        return new Lot(c, trade.getQuantity());
+    }
+
+    public Contract getContract() {
+        return c;
+    }
+
+    public long getQuantity() {
+        return q;
+    }
+
+    public boolean isUnit() {
+        return u;
+    }
+
+    /**
+     * Returns the last {@code open} units of the lot as contracts, oldest
+     * first. A unit is named after the lot with an index that counts down to
+     * 0 at the unit closed last, so the units still open keep their ids
+     * while the lot is closed from the front.
+     */
+    public List<Contract> units(long open) {
+        var r = new ArrayList<Contract>((int) Math.min(Math.max(open, 0), Integer.MAX_VALUE));
+        if (u) {
+            if (open > 0) {
+                r.add(copy(c, c.getContractId()));
+            }
+            return r;
+        }
+        for (long i = open - 1; i >= 0; --i) {
+            r.add(copy(c, c.getContractId() + "-" + i));
+        }
+        return r;
+    }
+
+    private static Contract copy(Contract contract, String id) {
+        var c = new Contract();
+        c.setContractId(id);
+        c.setTradeId(contract.getTradeId());
+        c.setInstrumentId(contract.getInstrumentId());
+        c.setExchangeId(contract.getExchangeId());
+        c.setDirection(contract.getDirection());
+        c.setOpenPrice(contract.getOpenPrice());
+        c.setClosePrice(contract.getClosePrice());
+        c.setTradingDay(contract.getTradingDay());
+        c.setCloseTime(contract.getCloseTime());
+        return c;
+    }
+}
@@ -19,8 +19,10 @@ package org.quantdirect.persistence;
 
 import org.quantdirect.*;
 
+import java.io.File;
 import java.time.LocalDateTime;
 import java.util.Collection;
+import java.util.List;
 
 public abstract class Persistence {
 
@@ -28,17 +30,56 @@ public abstract class Persistence {
 
     public static synchronized Persistence instance() {
         if (p == null) {
-            p = new QdPersistence();
+            p = new QdWriteBehind(new QdPersistence());
         }
         return p;
     }
 
+    /**
+     * Chooses when a write returns: once it is queued, or once it is
+     * committed to the database. A write that can't be queued, or that fails
+     * to commit while its caller waits, throws {@link PersistenceException}.
+     */
+    public abstract void setAck(Ack ack);
+
+    /**
+     * Returns when every write made before the call is committed.
+     */
+    public abstract void flush();
+
+    /**
+     * Opens the write-ahead log in the directory and replays the events the
+     * database hasn't committed. Events recorded before are not logged.
+     */
+    public abstract void open(File directory);
+
+    /**
+     * Logs the order state ahead and stores it.
+     */
+    public abstract void record(Order order);
+
+    public abstract void record(Collection<Order> orders);
+
+    /**
+     * Logs the trade ahead and stores it with the lot it opens, or closes
+     * contracts when the lot is null and the trade isn't an open.
+     */
+    public abstract void record(Trade trade, Lot lot);
+
     public abstract void insert(Trade trade);
 
     public abstract void insert(Order order);
 
+    public abstract void insert(Collection<Order> orders);
+
     public abstract void insert(Contract contract);
 
+    public abstract void insert(Lot lot);
+
+    /**
+     * Closes the oldest open contracts first. A lot closed in part is split
+     * into a closed lot and a lot with the rest still open.
+     */
     public abstract void closeContract(String instrumentId, String exchangeId,
             Direction direction, double price, long quantity, LocalDateTime closeTime);
 
@@ -47,6 +88,11 @@ public abstract class Persistence {
     public abstract Collection<Contract> getContracts(String instrumentId,
             String exchangeId, Direction direction);
 
+    /**
+     * Returns the lots of the contracts, open and closed, oldest first.
+     */
+    public abstract List<Lot> getLots(String instrumentId, String exchangeId, Direction direction);
+
     public abstract long countContractsBefore(String instrumentId, String exchangeId,
             Direction direction, LocalDateTime before);
 
@@ -56,4 +102,8 @@ public abstract class Persistence {
     public abstract void setProperty(String key, String value);
 
     public abstract String getProperty(String key);
+
+    public enum Ack {
+        ENQUEUE, COMMIT
+    }
 }
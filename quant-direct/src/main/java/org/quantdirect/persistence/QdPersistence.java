@@ -17,20 +17,159 @@
 
 package org.quantdirect.persistence;
 
+
 import org.quantdirect.*;
 import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+import org.quantdirect.tools.TOOLS;
 
+import java.io.File;
 import java.sql.*;
 import java.time.*;
-import java.util.Collection;
-import java.util.HashSet;
-
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statements are prepared once per connection and kept, values are bound as
+ * parameters instead of being formatted into the SQL. The tables are checked
+ * once when a connection is opened, not on every call. Rows written together
+ * go in one JDBC batch and one commit.
+ * <p>
+ * Writes go through one writer connection and hold this object's monitor,
+ * its prepared statements aren't shared between threads. Reads borrow one of
+ * a few reader connections instead. H2 keeps committed rows readable while
+ * the writer works, so queries from many quanters run side by side and never
+ * wait behind an order write. Connections are validated by a background
+ * thread, not before every statement, and a broken one is replaced the next
+ * time it's needed.
+ */
 class QdPersistence extends Persistence {
 
-    private Connection c;
+    private static final ZoneOffset ZONE = ZoneOffset.ofHours(8);
+
+    private static final String INSERT_TRADE = "INSERT INTO _TRADE_TABLE(" +
+                                               "_TRADE_ID, " +
+                                               "_ORDER_ID, " +
+                                               "_INSTRUMENT_ID, " +
+                                               "_EXCHANGE_ID, " +
+                                               "_PRICE, " +
+                                               "_QUANTITY, " +
+                                               "_DIRECTION, " +
+                                               "_OFFSET, " +
+                                               "_TRADING_DAY, " +
+                                               "_UPDATE_TIME) " +
+                                               "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_ORDER = "INSERT INTO _ORDER_TABLE (" +
+                                               "_ORDER_ID, " +
+                                               "_INSTRUMENT_ID, " +
+                                               "_EXCHANGE_ID, " +
+                                               "_PRICE, " +
+                                               "_QUANTITY, " +
+                                               "_STATUS, " +
+                                               "_STATUE_MESSAGE, " +
+                                               "_DIRECTION, " +
+                                               "_OFFSET, " +
+                                               "_TRADING_DAY, " +
+                                               "_UPDATE_TIME) " +
+                                               "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_LOT = "INSERT INTO _CONTRACT_TABLE(" +
+                                             "_CONTRACT_ID, " +
+                                             "_TRADE_ID, " +
+                                             "_INSTRUMENT_ID, " +
+                                             "_EXCHANGE_ID, " +
+                                             "_DIRECTION, " +
+                                             "_OPEN_PRICE, " +
+                                             "_CLOSE_PRICE, " +
+                                             "_TRADING_DAY, " +
+                                             "_CLOSE_TIME, " +
+                                             "_QUANTITY) " +
+                                             "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String CLOSE_LOT = "UPDATE _CONTRACT_TABLE " +
+                                            "SET _CLOSE_PRICE = ?, _CLOSE_TIME = ? " +
+                                            "WHERE _ROWID_ = ? " +
+                                            "  AND _INSTRUMENT_ID = ? " +
+                                            "  AND _EXCHANGE_ID = ? " +
+                                            "  AND _DIRECTION = ?";
+
+    private static final String SPLIT_LOT = "UPDATE _CONTRACT_TABLE " +
+                                            "SET _QUANTITY = ? " +
+                                            "WHERE _ROWID_ = ? " +
+                                            "  AND _INSTRUMENT_ID = ? " +
+                                            "  AND _EXCHANGE_ID = ? " +
+                                            "  AND _DIRECTION = ?";
+
+    private static final String SELECT_LOTS = "SELECT * " +
+                                              "FROM _CONTRACT_TABLE " +
+                                              "WHERE _INSTRUMENT_ID = ? " +
+                                              "  AND _EXCHANGE_ID = ? " +
+                                              "  AND _DIRECTION = ? " +
+                                              "ORDER BY _TRADING_DAY, _ROWID_";
+
+    private static final String SELECT_OPEN_LOTS = "SELECT _ROWID_, * " +
+                                                   "FROM _CONTRACT_TABLE " +
+                                                   "WHERE _INSTRUMENT_ID = ? " +
+                                                   "  AND _EXCHANGE_ID = ? " +
+                                                   "  AND _DIRECTION = ? " +
+                                                   "  AND (_CLOSE_TIME IS NULL OR _CLOSE_TIME = 0) " +
+                                                   "ORDER BY _TRADING_DAY, _ROWID_";
+
+    private static final String SELECT_NAMES = "SELECT DISTINCT _INSTRUMENT_ID, _EXCHANGE_ID " +
+                                               "FROM _CONTRACT_TABLE";
+
+    private static final String COUNT_CONTRACTS = "SELECT SUM(COALESCE(_QUANTITY, 1)) " +
+                                                  "FROM _CONTRACT_TABLE " +
+                                                  "WHERE _INSTRUMENT_ID = ? " +
+                                                  "  AND _EXCHANGE_ID = ? " +
+                                                  "  AND _DIRECTION = ? " +
+                                                  "  AND _TRADING_DAY < ?";
+
+    private static final String COUNT_OPEN_CONTRACTS = "SELECT SUM(COALESCE(_QUANTITY, 1)) " +
+                                                       "FROM _CONTRACT_TABLE " +
+                                                       "WHERE _INSTRUMENT_ID = ? " +
+                                                       "  AND _EXCHANGE_ID = ? " +
+                                                       "  AND _DIRECTION = ? " +
+                                                       "  AND (_CLOSE_TIME IS NULL OR _CLOSE_TIME = 0) " +
+                                                       "  AND _TRADING_DAY < ?";
+
+    private static final String SELECT_PROPERTY = "SELECT _VALUE FROM _PROPERTY_TABLE WHERE _KEY = ?";
+
+    private static final String UPDATE_PROPERTY = "UPDATE _PROPERTY_TABLE SET _VALUE = ? WHERE _KEY = ?";
+
+    private static final String INSERT_PROPERTY = "INSERT INTO _PROPERTY_TABLE (_KEY, _VALUE) VALUES (?, ?)";
+
+    private static final int READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final long HEALTH_MILLIS = 5000;
+
+    private static final long WAIT_MILLIS = 100;
+
+    private final ArrayBlockingQueue<Session> idle = new ArrayBlockingQueue<>(READERS);
+    private final AtomicInteger readers = new AtomicInteger();
+    private final LongAdder reconnects = new LongAdder();
+    private final String url;
+    private Session w;
+    private volatile boolean ready;
+    private boolean grouping;
+    private SQLException failure;
 
     QdPersistence() {
+        this("jdbc:h2:./QuantDirect;AUTO_RECONNECT=TRUE");
+    }
+
+    QdPersistence(String url) {
+        this.url = url;
         driver();
+        METRICS.register("persistence.readers", readers::get);
+        METRICS.register("persistence.reconnects", reconnects::sum);
+        var t = new Thread(this::health, "QD-PERSISTENCE-HEALTH");
+        t.setDaemon(true);
+        t.start();
     }
 
     private void driver() {
@@ -41,52 +180,163 @@ class QdPersistence extends Persistence {
         }
     }
 
-    private synchronized Connection conn() throws SQLException {
-        if (!c.isValid(1)) {
-            c = createConnection();
+    /*
+     * The tables are created on the writer, so it opens before the first
+     * reader.
+     */
+    private synchronized Session writer() throws SQLException {
+        if (w == null || w.broken) {
+            if (w != null) {
+                w.close();
+                reconnects.increment();
+            }
+            var cn = createConnection();
+            ensureTables(cn);
+            w = new Session(cn);
+            ready = true;
         }
-        return c;
+        return w;
+    }
+
+    private Connection conn() throws SQLException {
+        return writer().c;
     }
 
     private Connection createConnection() throws SQLException {
-        return DriverManager.getConnection("jdbc:h2:./QuantDirect;AUTO_RECONNECT=TRUE", "sa", "");
+        return DriverManager.getConnection(url, "sa", "");
     }
 
-    private boolean tableExists(String table) throws SQLException {
-        var meta = conn().getMetaData();
-        var rs = meta.getTables(null, null, table, null);
-        return rs.next();
+    private synchronized PreparedStatement prepare(String sql) throws SQLException {
+        return writer().prepare(sql);
     }
 
-    private void ensureTrade() throws SQLException {
-        if (!tableExists("_TRADE_TABLE")) {
-            createTradeTable();
+    /*
+     * Readers are opened on demand up to the pool size. When all are busy
+     * the caller waits for one to come back, and opens a new one if a broken
+     * reader was dropped meanwhile.
+     */
+    private Session borrow() throws SQLException {
+        while (true) {
+            var s = idle.poll();
+            if (s != null) {
+                return s;
+            }
+            if (readers.incrementAndGet() <= READERS) {
+                try {
+                    return openReader();
+                } catch (SQLException exception) {
+                    readers.decrementAndGet();
+                    throw exception;
+                }
+            }
+            readers.decrementAndGet();
+            try {
+                s = idle.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a reader connection.", exception);
+            }
+            if (s != null) {
+                return s;
+            }
         }
     }
 
-    private void ensureOrder() throws SQLException {
-        if (!tableExists("_ORDER_TABLE")) {
-            createOrderTable();
+    private Session openReader() throws SQLException {
+        if (!ready) {
+            writer();
+        }
+        var cn = createConnection();
+        cn.setReadOnly(true);
+        return new Session(cn);
+    }
+
+    private void release(Session s) {
+        if (s.broken) {
+            s.close();
+            readers.decrementAndGet();
+            reconnects.increment();
+        } else if (!idle.offer(s)) {
+            s.close();
+            readers.decrementAndGet();
         }
     }
 
-    private void ensureContractTable() throws SQLException {
-        if (!tableExists("_CONTRACT_TABLE")) {
-            createContractTable();
+    private <T> T read(SqlRead<T> work, T fallback) {
+        Session s;
+        try {
+            s = borrow();
+        } catch (SQLException throwable) {
+            LOG.write(throwable, this);
+            return fallback;
+        }
+        try {
+            return work.run(s);
+        } catch (SQLException throwable) {
+            LOG.write(throwable, this);
+            s.check();
+            return fallback;
+        } finally {
+            release(s);
         }
     }
 
-    private void sqlCreate(String sql) throws SQLException {
-        try (Statement statement = conn().createStatement()) {
-            var n = statement.execute(sql);
-            var c = statement.getUpdateCount();
-            if (c != 1) {
-                LOG.write("Create table affects " + c + " row.", this);
+    /*
+     * Idle readers are taken out of the pool one by one to be checked, a
+     * reader in use is checked when it fails.
+     */
+    private void health() {
+        while (true) {
+            try {
+                Thread.sleep(HEALTH_MILLIS);
+            } catch (InterruptedException exception) {
+                return;
+            }
+            synchronized (this) {
+                if (w != null) {
+                    w.check();
+                }
+            }
+            for (int i = idle.size(); i > 0; --i) {
+                var s = idle.poll();
+                if (s == null) {
+                    break;
+                }
+                s.check();
+                release(s);
             }
         }
     }
 
-    private void createTradeTable() throws SQLException {
+    private void ensureTables(Connection cn) throws SQLException {
+        var meta = cn.getMetaData();
+        if (!tableExists(meta, "_TRADE_TABLE")) {
+            createTradeTable(cn);
+        }
+        if (!tableExists(meta, "_ORDER_TABLE")) {
+            createOrderTable(cn);
+        }
+        if (!tableExists(meta, "_CONTRACT_TABLE")) {
+            createContractTable(cn);
+        }
+        if (!tableExists(meta, "_PROPERTY_TABLE")) {
+            createPropertyTable(cn);
+        }
+    }
+
+    private boolean tableExists(DatabaseMetaData meta, String table) throws SQLException {
+        try (var rs = meta.getTables(null, null, table, null)) {
+            return rs.next();
+        }
+    }
+
+    private void sqlCreate(Connection cn, String sql) throws SQLException {
+        try (Statement statement = cn.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private void createTradeTable(Connection cn) throws SQLException {
         String sql = "CREATE TABLE _TRADE_TABLE\n" +
                      "(\n" +
                      "    _TRADE_ID      CHAR(128),\n" +
@@ -100,10 +350,10 @@ class QdPersistence extends Persistence {
                      "    _TRADING_DAY   BIGINT,\n" +
                      "    _UPDATE_TIME   BIGINT\n" +
                      ")";
-        sqlCreate(sql);
+        sqlCreate(cn, sql);
     }
 
-    private void createOrderTable() throws SQLException {
+    private void createOrderTable(Connection cn) throws SQLException {
         String sql = "CREATE TABLE _ORDER_TABLE\n" +
                      "(\n" +
                      "    _ORDER_ID       CHAR(128),\n" +
@@ -118,10 +368,10 @@ class QdPersistence extends Persistence {
                      "    _TRADING_DAY    BIGINT,\n" +
                      "    _UPDATE_TIME    BIGINT\n" +
                      ")";
-        sqlCreate(sql);
+        sqlCreate(cn, sql);
     }
 
-    private void createContractTable() throws SQLException {
+    private void createContractTable(Connection cn) throws SQLException {
         String sql = "CREATE TABLE _CONTRACT_TABLE\n" +
                      "(\n" +
                      "    _CONTRACT_ID   CHAR(128),\n" +
@@ -131,201 +381,360 @@ class QdPersistence extends Persistence {
                      "    _DIRECTION     CHAR(32),\n" +
                      "    _OPEN_PRICE    DECIMAL,\n" +
                      "    _CLOSE_PRICE   DECIMAL,\n" +
-                     "    _TRADING_DAY   BIGINT\n" +
-                     "    _CLOSE_TIME    BIGINT" +
+                     "    _TRADING_DAY   BIGINT,\n" +
+                     "    _CLOSE_TIME    BIGINT,\n" +
+                     "    _QUANTITY      BIGINT\n" +
                      ")";
-        sqlCreate(sql);
+        sqlCreate(cn, sql);
     }
 
-    @Override
-    public void insert(Trade trade) {
-        String sql = "INSERT INTO _TRADE_TABLE(" +
-                     "_TRADE_ID, " +
-                     "_ORDER_ID, " +
-                     "_INSTRUMENT_ID, " +
-                     "_EXCHANGE_ID, " +
-                     "_PRICE, " +
-                     "_QUANTITY, " +
-                     "_DIRECTION, " +
-                     "_OFFSET, " +
-                     "_TRADING_DAY, " +
-                     "_UPDATE_TIME)\n" +
-                     "VALUES (" +
-                     toSql(trade.getTradeId()) + "," +
-                     toSql(trade.getOrderId()) + "," +
-                     toSql(trade.getInstrumentId()) + "," +
-                     toSql(trade.getExchangeId()) + "," +
-                     toSql(trade.getPrice()) + "," +
-                     toSql(trade.getQuantity()) + "," +
-                     toSql(trade.getDirection()) + "," +
-                     toSql(trade.getOffset()) + "," +
-                     toSql(trade.getTradingDay()) + "," +
-                     toSql(trade.getUpdateTime()) +
+    private void createPropertyTable(Connection cn) throws SQLException {
+        String sql = "CREATE TABLE _PROPERTY_TABLE\n" +
+                     "(\n" +
+                     "    _KEY   CHAR(128),\n" +
+                     "    _VALUE CHAR(128)\n" +
                      ")";
+        sqlCreate(cn, sql);
+    }
+
+    /*
+     * Runs several writes as one transaction. A write that fails rolls the
+     * whole group back and the group throws its failure, and the writer is
+     * checked at once in case the connection broke.
+     */
+    synchronized void group(Runnable writes) throws SQLException {
+        var cn = conn();
+        cn.setAutoCommit(false);
+        grouping = true;
+        failure = null;
         try {
-            ensureTrade();
-            sqlUpdate(sql, 1);
-        } catch (SQLException throwable) {
-            LOG.write(throwable, this);
+            writes.run();
+            if (failure != null) {
+                throw failure;
+            }
+            cn.commit();
+        } catch (SQLException | RuntimeException exception) {
+            try {
+                cn.rollback();
+            } catch (SQLException suppressed) {
+                exception.addSuppressed(suppressed);
+            }
+            w.check();
+            throw exception;
+        } finally {
+            grouping = false;
+            failure = null;
+            try {
+                cn.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
         }
     }
 
-    private void sqlUpdate(String sql, int rows) throws SQLException {
-        var statement = conn().createStatement();
-        var c = statement.executeUpdate(sql);
-        if (c != rows) {
-            LOG.write("Insert row affects " + c + " row.", this);
+    /*
+     * Writes log their own failures. Inside a group the first failure is also
+     * kept for the group to throw.
+     */
+    private void fail(SQLException exception) {
+        LOG.write(exception, this);
+        if (grouping && failure == null) {
+            failure = exception;
         }
     }
 
-    private String toSql(String s) {
-        if (s == null) {
-            return "NULL";
-        }
-        return "'" + s + "'";
+    /*
+     * Every write is committed when it returns and nothing is logged ahead,
+     * the write-behind stage in front of this one does that.
+     */
+    @Override
+    public void setAck(Ack ack) {
     }
 
-    private String toSql(double v) {
-        return String.format("%.4f", v);
+    @Override
+    public void open(File directory) {
     }
 
-    private String toSql(long v) {
-        return Long.toString(v);
+    @Override
+    public void record(Order order) {
+        insert(order);
     }
 
-    private String toSql(Direction d) {
-        return "'" + d.name() + "'";
+    @Override
+    public void record(Collection<Order> orders) {
+        insert(orders);
     }
 
-    private String toSql(Offset o) {
-        return "'" + o.name() + "'";
+    @Override
+    public synchronized void record(Trade trade, Lot lot) {
+        try {
+            sqlBatch(() -> {
+                insert(trade);
+                if (lot != null) {
+                    insert(lot);
+                } else if (trade.getOffset() != Offset.OPEN) {
+                    var d = trade.getDirection() == Direction.BUY ? Direction.SELL : Direction.BUY;
+                    closeContract(trade.getInstrumentId(), trade.getExchangeId(), d, trade.getPrice(),
+                            trade.getQuantity(), trade.getUpdateTime());
+                }
+            });
+        } catch (SQLException throwable) {
+            fail(throwable);
+        }
     }
 
-    private String toSql(LocalDateTime n) {
-        if (n == null) {
-            return "NULL";
-        }
-        var x = n.toInstant(ZoneOffset.ofHours(8)).toEpochMilli();
-        return Long.toString(x);
+    @Override
+    public void flush() {
     }
 
-    private String toSql(LocalDate n) {
-        if (n == null) {
-            return "NULL";
+    @Override
+    public synchronized void insert(Trade trade) {
+        try {
+            var s = prepare(INSERT_TRADE);
+            bind(s, trade);
+            sqlUpdate(s, 1);
+        } catch (SQLException throwable) {
+            fail(throwable);
         }
-        var x = LocalDateTime.of(n, LocalTime.of(0, 0));
-        return toSql(x);
     }
 
-    private String toSql(Order.Status status) {
-        return "'" + status.name() + "'";
+    private void bind(PreparedStatement s, Trade trade) throws SQLException {
+        s.setString(1, trade.getTradeId());
+        s.setString(2, trade.getOrderId());
+        s.setString(3, trade.getInstrumentId());
+        s.setString(4, trade.getExchangeId());
+        s.setDouble(5, trade.getPrice());
+        s.setLong(6, trade.getQuantity());
+        s.setString(7, name(trade.getDirection()));
+        s.setString(8, name(trade.getOffset()));
+        setTime(s, 9, millis(trade.getTradingDay()));
+        setTime(s, 10, millis(trade.getUpdateTime()));
     }
 
     @Override
-    public void insert(Order order) {
-        String sql = "INSERT INTO _ORDER_TABLE (" +
-                     "_ORDER_ID, " +
-                     "_INSTRUMENT_ID, " +
-                     "_EXCHANGE_ID, " +
-                     "_PRICE, " +
-                     "_QUANTITY, " +
-                     "_STATUS, " +
-                     "_STATUE_MESSAGE, " +
-                     "_DIRECTION, " +
-                     "_OFFSET, " +
-                     "_TRADING_DAY, " +
-                     "_UPDATE_TIME) " +
-                     "VALUES (" +
-                     toSql(order.getOrderId()) + "," +
-                     toSql(order.getInstrumentId()) + "," +
-                     toSql(order.getExchangeId()) + "," +
-                     toSql(order.getPrice()) + "," +
-                     toSql(order.getQuantity()) + "," +
-                     toSql(order.getStatus()) + "," +
-                     toSql(order.getStatusMessage()) + "," +
-                     toSql(order.getDirection()) + "," +
-                     toSql(order.getOffset()) + "," +
-                     toSql(order.getTradingDay()) + "," +
-                     toSql(order.getUpdateTime()) +
-                     ")";
+    public synchronized void insert(Order order) {
         try {
-            ensureOrder();
-            sqlUpdate(sql, 1);
+            var s = prepare(INSERT_ORDER);
+            bind(s, order);
+            sqlUpdate(s, 1);
         } catch (SQLException throwable) {
-            LOG.write(throwable, this);
+            fail(throwable);
+        }
+    }
+
+    @Override
+    public synchronized void insert(Collection<Order> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            var s = prepare(INSERT_ORDER);
+            sqlBatch(() -> {
+                try {
+                    for (var o : orders) {
+                        bind(s, o);
+                        s.addBatch();
+                    }
+                    s.executeBatch();
+                } finally {
+                    s.clearBatch();
+                }
+            });
+        } catch (SQLException throwable) {
+            fail(throwable);
+        }
+    }
+
+    private void bind(PreparedStatement s, Order order) throws SQLException {
+        s.setString(1, order.getOrderId());
+        s.setString(2, order.getInstrumentId());
+        s.setString(3, order.getExchangeId());
+        s.setDouble(4, order.getPrice());
+        s.setLong(5, order.getQuantity());
+        s.setString(6, name(order.getStatus()));
+        s.setString(7, order.getStatusMessage());
+        s.setString(8, name(order.getDirection()));
+        s.setString(9, name(order.getOffset()));
+        setTime(s, 10, millis(order.getTradingDay()));
+        setTime(s, 11, millis(order.getUpdateTime()));
+    }
+
+    private void sqlUpdate(PreparedStatement statement, int rows) throws SQLException {
+        var c = statement.executeUpdate();
+        if (c != rows) {
+            LOG.write("Insert row affects " + c + " row.", this);
+        }
+    }
+
+    /*
+     * All statements commit together, so a batch costs one round trip and
+     * one commit whatever its size. Inside a group the group commits them.
+     */
+    private synchronized void sqlBatch(SqlWork work) throws SQLException {
+        var cn = conn();
+        var auto = cn.getAutoCommit();
+        if (!auto) {
+            work.run();
+            return;
+        }
+        try {
+            cn.setAutoCommit(false);
+            work.run();
+            cn.commit();
+        } catch (SQLException exception) {
+            cn.rollback();
+            throw exception;
+        } finally {
+            cn.setAutoCommit(auto);
+        }
+    }
+
+    private String name(Enum<?> e) {
+        return e == null ? null : e.name();
+    }
+
+    private void setTime(PreparedStatement s, int index, Long millis) throws SQLException {
+        if (millis == null) {
+            s.setNull(index, Types.BIGINT);
+        } else {
+            s.setLong(index, millis);
+        }
+    }
+
+    private Long millis(LocalDateTime n) {
+        if (n == null) {
+            return null;
+        }
+        return n.toInstant(ZONE).toEpochMilli();
+    }
+
+    private Long millis(LocalDate n) {
+        if (n == null) {
+            return null;
         }
+        return millis(LocalDateTime.of(n, LocalTime.of(0, 0)));
     }
 
     @Override
     public void insert(Contract contract) {
-        String sql = "INSERT INTO _CONTRACT_TABLE(" +
-                     "_CONTRACT_ID, " +
-                     "_TRADE_ID, " +
-                     "_INSTRUMENT_ID, " +
-                     "_EXCHANGE_ID, " +
-                     "_DIRECTION, " +
-                     "_OPEN_PRICE, " +
-                     "_CLOSE_PRICE, " +
-                     "_TRADING_DAY, " +
-                     "_CLOSE_TIME)" +
-                     "VALUES (" +
-                     toSql(contract.getContractId()) + "," +
-                     toSql(contract.getTradeId()) + "," +
-                     toSql(contract.getInstrumentId()) + "," +
-                     toSql(contract.getExchangeId()) + "," +
-                     toSql(contract.getDirection()) + "," +
-                     toSql(contract.getOpenPrice()) + "," +
-                     toSql(contract.getClosePrice()) + "," +
-                     toSql(contract.getTradingDay()) + "," +
-                     toSql(contract.getCloseTime()) +
-                     ")";
+        insert(new Lot(contract, 1));
+    }
+
+    @Override
+    public synchronized void insert(Lot lot) {
         try {
-            ensureContractTable();
-            sqlUpdate(sql, 1);
+            var s = prepare(INSERT_LOT);
+            bind(s, lot.getContract(), lot.getQuantity());
+            sqlUpdate(s, 1);
         } catch (SQLException throwable) {
-            LOG.write(throwable, this);
+            fail(throwable);
         }
     }
 
+    private void bind(PreparedStatement s, Contract contract, long quantity) throws SQLException {
+        s.setString(1, contract.getContractId());
+        s.setString(2, contract.getTradeId());
+        s.setString(3, contract.getInstrumentId());
+        s.setString(4, contract.getExchangeId());
+        s.setString(5, name(contract.getDirection()));
+        s.setDouble(6, contract.getOpenPrice());
+        s.setDouble(7, contract.getClosePrice());
+        setTime(s, 8, millis(contract.getTradingDay()));
+        setTime(s, 9, millis(contract.getCloseTime()));
+        s.setLong(10, quantity);
+    }
+
+    /*
+     * Walks the open lots oldest first and only touches the lots it closes,
+     * the last one is split when it is closed in part. All updates commit in
+     * one batch. Lots are updated by row, their ids are only unique within
+     * the run that opened them.
+     */
     @Override
-    public void closeContract(String instrumentId, String exchangeId, Direction direction,
+    public synchronized void closeContract(String instrumentId, String exchangeId, Direction direction,
             double price, long quantity, LocalDateTime closeTime) {
-        String sql = "UPDATE _CONTRACT_TABLE " +
-                     "SET _CLOSE_PRICE = " + toSql(price) + ", " +
-                     "_CLOSE_TIME  = " + toSql(closeTime) + " " +
-                     "WHERE _CONTRACT_ID IN ( " +
-                     "    SELECT _CONTRACT_ID " +
-                     "    FROM _CONTRACT_TABLE " +
-                     "    WHERE _INSTRUMENT_ID = " + toSql(instrumentId) +
-                     "      AND _EXCHANGE_ID = " + toSql(exchangeId) +
-                     "      AND _DIRECTION = " + toSql(direction) +
-                     "    ORDER BY _TRADING_DAY " +
-                     "    LIMIT " + toSql(quantity) + " " +
-                     "    )";
         try {
-            ensureContractTable();
-            sqlUpdate(sql, (int) quantity);
+            var rows = new ArrayList<Long>();
+            var lots = new ArrayList<Lot>();
+            var s = writer().prepare(SELECT_OPEN_LOTS);
+            s.setString(1, instrumentId);
+            s.setString(2, exchangeId);
+            s.setString(3, name(direction));
+            try (var rs = s.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(rs.getLong("_ROWID_"));
+                    lots.add(toLot(rs));
+                }
+            }
+            var close = prepare(CLOSE_LOT);
+            var split = prepare(SPLIT_LOT);
+            var insert = prepare(INSERT_LOT);
+            var q = quantity;
+            var splits = false;
+            for (int i = 0; i < lots.size() && q > 0; ++i) {
+                var c = lots.get(i).getContract();
+                var n = lots.get(i).getQuantity();
+                if (n <= q) {
+                    close.setDouble(1, price);
+                    setTime(close, 2, millis(closeTime));
+                    where(close, 3, rows.get(i), c);
+                    close.addBatch();
+                    q -= n;
+                } else {
+                    split.setLong(1, n - q);
+                    where(split, 2, rows.get(i), c);
+                    c.setContractId(TOOLS.nextId());
+                    c.setClosePrice(price);
+                    c.setCloseTime(closeTime);
+                    bind(insert, c, q);
+                    splits = true;
+                    q = 0;
+                }
+            }
+            if (q > 0) {
+                LOG.write("Close " + quantity + " contracts but " + (quantity - q) + " open.", this);
+            }
+            final var x = splits;
+            try {
+                sqlBatch(() -> {
+                    close.executeBatch();
+                    if (x) {
+                        split.executeUpdate();
+                        insert.executeUpdate();
+                    }
+                });
+            } finally {
+                close.clearBatch();
+            }
         } catch (SQLException throwable) {
-            LOG.write(throwable, this);
+            fail(throwable);
         }
     }
 
-    private ResultSet sqlQuery(String sql) throws SQLException {
-        var statement = conn().createStatement();
-        return statement.executeQuery(sql);
+    private void where(PreparedStatement s, int index, long row, Contract contract) throws SQLException {
+        s.setLong(index, row);
+        s.setString(index + 1, contract.getInstrumentId());
+        s.setString(index + 2, contract.getExchangeId());
+        s.setString(index + 3, name(contract.getDirection()));
+    }
+
+    private List<Lot> queryLots(Session session, String sql, String instrumentId, String exchangeId,
+            Direction direction) throws SQLException {
+        var s = session.prepare(sql);
+        s.setString(1, instrumentId);
+        s.setString(2, exchangeId);
+        s.setString(3, name(direction));
+        try (var rs = s.executeQuery()) {
+            return toLots(rs);
+        }
     }
 
     @Override
     public Collection<ContractName> getContractNames() {
-        try {
-            ensureContractTable();
-            String sql = "SELECT DISTINCT _INSTRUMENT_ID, _EXCHANGE_ID FROM _CONTRACT_TABLE";
-            var rs = sqlQuery(sql);
-            return toContractNames(rs);
-        } catch (SQLException throwable) {
-            LOG.write(throwable, this);
-            return new HashSet<>();
-        }
+        return read(s -> {
+            try (var rs = s.prepare(SELECT_NAMES).executeQuery()) {
+                return toContractNames(rs);
+            }
+        }, new HashSet<>());
     }
 
     private Collection<ContractName> toContractNames(ResultSet rs) throws SQLException {
@@ -338,43 +747,59 @@ class QdPersistence extends Persistence {
         return r;
     }
 
+    /*
+     * Every unit of a lot is one contract, named as in Lot.units.
+     */
     @Override
     public Collection<Contract> getContracts(String instrumentId, String exchangeId, Direction direction) {
-        String sql = "SELECT * " +
-                     "FROM _CONTRACT_TABLE " +
-                     "WHERE _INSTRUMENT_ID = " + toSql(instrumentId) +
-                     "  AND _EXCHANGE_ID = " + toSql(exchangeId) +
-                     "  AND _DIRECTION = " + toSql(direction);
-        try {
-            ensureContractTable();
-            var rs = sqlQuery(sql);
-            return toContracts(rs);
-        } catch (SQLException throwable) {
-            LOG.write(throwable, this);
-            return new HashSet<>();
+        var r = new ArrayList<Contract>();
+        for (var l : getLots(instrumentId, exchangeId, direction)) {
+            r.addAll(l.units(l.getQuantity()));
         }
+        return r;
+    }
+
+    @Override
+    public List<Lot> getLots(String instrumentId, String exchangeId, Direction direction) {
+        return read(s -> queryLots(s, SELECT_LOTS, instrumentId, exchangeId, direction), new ArrayList<>());
     }
 
-    private Collection<Contract> toContracts(ResultSet rs) throws SQLException {
-        var r = new HashSet<Contract>();
+    /*
+     * Rows stored one per unit have no quantity, they are lots of one.
+     */
+    private List<Lot> toLots(ResultSet rs) throws SQLException {
+        var r = new ArrayList<Lot>();
         while (rs.next()) {
-            var c = new Contract();
-            c.setContractId(rs.getString("_CONTRACT_ID"));
-            c.setTradeId(rs.getString("_TRADE_ID"));
-            c.setInstrumentId(rs.getString("_INSTRUMENT_ID"));
-            c.setExchangeId(rs.getString("_EXCHANGE_ID"));
-            c.setDirection(toDirection(rs.getString("_DIRECTION")));
-            c.setOpenPrice(rs.getDouble("_OPEN_PRICE"));
-            c.setClosePrice(rs.getDouble("_CLOSE_PRICE"));
-            c.setTradingDay(toTradingDay(rs.getLong("_TRADING_DAY")));
-            r.add(c);
+            r.add(toLot(rs));
         }
         return r;
     }
 
+    private Lot toLot(ResultSet rs) throws SQLException {
+        var c = new Contract();
+        c.setContractId(rs.getString("_CONTRACT_ID"));
+        c.setTradeId(rs.getString("_TRADE_ID"));
+        c.setInstrumentId(rs.getString("_INSTRUMENT_ID"));
+        c.setExchangeId(rs.getString("_EXCHANGE_ID"));
+        c.setDirection(toDirection(rs.getString("_DIRECTION")));
+        c.setOpenPrice(rs.getDouble("_OPEN_PRICE"));
+        c.setClosePrice(rs.getDouble("_CLOSE_PRICE"));
+        c.setTradingDay(toTradingDay(rs.getLong("_TRADING_DAY")));
+        c.setCloseTime(toCloseTime(rs.getLong("_CLOSE_TIME")));
+        var q = rs.getLong("_QUANTITY");
+        return rs.wasNull() ? Lot.unit(c) : new Lot(c, q);
+    }
+
     private LocalDate toTradingDay(long m) {
         var i = Instant.ofEpochMilli(m);
-        return LocalDate.ofInstant(i, ZoneId.ofOffset("", ZoneOffset.ofHours(8)));
+        return LocalDate.ofInstant(i, ZoneId.ofOffset("", ZONE));
+    }
+
+    private LocalDateTime toCloseTime(long m) {
+        if (m == 0) {
+            return null;
+        }
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(m), ZONE);
     }
 
     private Direction toDirection(String direction) {
@@ -389,115 +814,110 @@ class QdPersistence extends Persistence {
     @Override
     public long countContractsBefore(String instrumentId, String exchangeId, Direction direction,
             LocalDateTime before) {
-        var n = before.toInstant(ZoneOffset.ofHours(8)).toEpochMilli();
-        String sql = "SELECT COUNT(*) " +
-                     "FROM _CONTRACT_TABLE " +
-                     "WHERE _INSTRUMENT_ID = " + toSql(instrumentId) +
-                     "  AND _EXCHANGE_ID = " + toSql(exchangeId) +
-                     "  AND _DIRECTION = " + toSql(direction) +
-                     "  AND _TRADING_DAY < " + toSql(before);
-        try {
-            ensureContractTable();
-            var rs = sqlQuery(sql);
-            if (rs.next()) {
-                return rs.getLong(1);
-            }
-        } catch (SQLException throwable) {
-            LOG.write(throwable, this);
-        }
-        return 0;
+        return count(COUNT_CONTRACTS, instrumentId, exchangeId, direction, before);
     }
 
     @Override
     public long countOpenContractsBefore(String instrumentId, String exchangeId,
             Direction direction, LocalDateTime before) {
-        var n = before.toInstant(ZoneOffset.ofHours(8)).toEpochMilli();
-        String sql = "SELECT COUNT(*) " +
-                     "FROM _CONTRACT_TABLE " +
-                     "WHERE _INSTRUMENT_ID = " + toSql(instrumentId) +
-                     "  AND _EXCHANGE_ID = " + toSql(exchangeId) +
-                     "  AND _DIRECTION = " + toSql(direction) +
-                     "  AND (_CLOSE_TIME IS NULL OR _CLOSE_TIME = 0)\n" +
-                     "  AND _TRADING_DAY < " + toSql(before);
+        return count(COUNT_OPEN_CONTRACTS, instrumentId, exchangeId, direction, before);
+    }
+
+    private long count(String sql, String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        return read(session -> {
+            var s = session.prepare(sql);
+            s.setString(1, instrumentId);
+            s.setString(2, exchangeId);
+            s.setString(3, name(direction));
+            setTime(s, 4, millis(before));
+            try (var rs = s.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }, 0L);
+    }
+
+    @Override
+    public synchronized void setProperty(String key, String value) {
         try {
-            ensureContractTable();
-            var rs = sqlQuery(sql);
-            if (rs.next()) {
-                return rs.getLong(1);
+            var u = prepare(UPDATE_PROPERTY);
+            u.setString(1, value);
+            u.setString(2, key);
+            if (u.executeUpdate() == 0) {
+                var i = prepare(INSERT_PROPERTY);
+                i.setString(1, key);
+                i.setString(2, value);
+                sqlUpdate(i, 1);
             }
         } catch (SQLException throwable) {
-            LOG.write(throwable, this);
+            fail(throwable);
         }
-        return 0;
     }
 
     @Override
-    public void setProperty(String key, String value) {
-        var p = getProperty(key);
-        if (p == null) {
-            insertProperty(key, value);
-        } else {
-            updateProperty(key, value);
-        }
+    public String getProperty(String key) {
+        return read(session -> {
+            var s = session.prepare(SELECT_PROPERTY);
+            s.setString(1, key);
+            try (var rs = s.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }, null);
     }
 
-    private void updateProperty(String key, String value) {
-        String sql = "UPDATE _PROPERTY_TABLE SET _VALUE = " +
-                     toSql(value) +
-                     " WHERE _KEY = " +
-                     toSql(key);
-        try {
-            ensurePropertyTable();
-            sqlUpdate(sql, 1);
-        } catch (SQLException throwable) {
-            LOG.write(throwable, this);
-        }
+    @FunctionalInterface
+    private interface SqlWork {
+        void run() throws SQLException;
     }
 
-    private void insertProperty(String key, String value) {
-        String sql = "INSERT INTO _PROPERTY_TABLE (" +
-                     "_KEY, " +
-                     "_VALUE) " +
-                     "VALUES (" +
-                     toSql(key) + "," +
-                     toSql(value) +
-                     ")";
-        try {
-            sqlUpdate(sql, 1);
-        } catch (SQLException throwables) {
-            LOG.write(throwables, this);
-        }
+    @FunctionalInterface
+    private interface SqlRead<T> {
+        T run(Session session) throws SQLException;
     }
 
-    @Override
-    public String getProperty(String key) {
-        try {
-            ensurePropertyTable();
-            String sql = "SELECT _VALUE FROM _PROPERTY_TABLE WHERE _KEY = " + toSql(key);
-            var rs = sqlQuery(sql);
-            if (rs.next()) {
-                return rs.getString(1);
-            } else {
-                return null;
+    /*
+     * A connection with the statements prepared on it. Statements prepared
+     * on a broken connection are useless, they go with it.
+     */
+    private static class Session {
+
+        private final Connection c;
+        private final Map<String, PreparedStatement> ps = new HashMap<>();
+        private volatile boolean broken;
+
+        Session(Connection connection) {
+            c = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            var s = ps.get(sql);
+            if (s == null) {
+                s = c.prepareStatement(sql);
+                ps.put(sql, s);
             }
-        } catch (SQLException throwable) {
-            LOG.write(throwable, this);
-            return null;
+            return s;
         }
-    }
 
-    private void ensurePropertyTable() throws SQLException {
-        if (!tableExists("_PROPERTY_TABLE")) {
-            createPropertyTable();
+        void check() {
+            try {
+                broken = broken || !c.isValid(1);
+            } catch (SQLException exception) {
+                broken = true;
+            }
         }
-    }
 
-    private void createPropertyTable() throws SQLException {
-        String sql = "CREATE TABLE _PROPERTY_TABLE\n" +
-                     "(\n" +
-                     "    _KEY   CHAR(128),\n" +
-                     "    _VALUE CHAR(128)\n" +
-                     ")";
-        sqlCreate(sql);
+        void close() {
+            for (var s : ps.values()) {
+                try {
+                    s.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            ps.clear();
+            try {
+                c.close();
+            } catch (SQLException ignored) {
+            }
+        }
     }
 }
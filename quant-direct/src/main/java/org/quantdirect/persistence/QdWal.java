@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.persistence;
+
+import org.quantdirect.Direction;
+import org.quantdirect.Offset;
+import org.quantdirect.Order;
+import org.quantdirect.Trade;
+import org.quantdirect.tools.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of order and trade events in memory-mapped segments. A
+ * record is written to the page cache before its event is applied, so it
+ * survives the JVM dying, and is read back on the next start for whatever
+ * the database hadn't committed.
+ * <p>
+ * A record is a little-endian length, a CRC32 of the rest, a sequence number
+ * one above the previous record's, a type and the event's fields. A segment
+ * is named after the sequence of its first record and ends with a length of
+ * -1 when the next record didn't fit. Reading stops at a zero length, a bad
+ * checksum or a gap in the sequence, which is where a crash cut the log.
+ * Segments that only hold records below the checkpoint are deleted when a
+ * new segment starts.
+ */
+class QdWal {
+
+    static final int SHIFT = 26;
+    static final int SEGMENT = 1 << SHIFT;
+    static final int HEADER = 17;
+    static final byte ORDER = 1;
+    static final byte TRADE = 2;
+    static final String SUFFIX = ".wal";
+
+    private static final ZoneOffset ZONE = ZoneOffset.ofHours(8);
+    private static final long NULL = Long.MIN_VALUE;
+
+    private final File dir;
+    private final ByteBuffer buf;
+    private final CRC32 crc;
+    private FileChannel ch;
+    private MappedByteBuffer seg;
+    private int pos;
+    private long seq;
+    private volatile long checkpoint;
+
+    QdWal(File directory) throws IOException {
+        dir = directory;
+        Files.createDirectories(dir.toPath());
+        buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        crc = new CRC32();
+        seq = 0;
+        var s = segments();
+        if (s.isEmpty()) {
+            return;
+        }
+        var last = s.get(s.size() - 1);
+        var r = scan(last, first(last) - 1, null);
+        seq = r[0];
+        ch = open(last);
+        seg = map(ch);
+        pos = (int) r[1];
+    }
+
+    long sequence() {
+        return seq;
+    }
+
+    /*
+     * Sequences go on from the checkpoint when the log was lost or is
+     * behind the database, or a later replay would skip new records.
+     */
+    synchronized void checkpoint(long sequence) throws IOException {
+        checkpoint = sequence;
+        if (seq < sequence) {
+            seq = sequence;
+            end();
+        }
+    }
+
+    synchronized long append(Order order) throws IOException {
+        begin(ORDER);
+        put(order);
+        return write();
+    }
+
+    synchronized long append(Trade trade, String lotId) throws IOException {
+        begin(TRADE);
+        put(trade);
+        put(lotId);
+        return write();
+    }
+
+    private void begin(byte type) {
+        buf.clear();
+        buf.putLong(0);
+        buf.put(type);
+    }
+
+    /*
+     * The length goes in last, a reader finding it set finds the rest set.
+     */
+    private long write() throws IOException {
+        var n = seq + 1;
+        buf.putLong(0, n);
+        buf.flip();
+        var len = 8 + buf.remaining();
+        if (seg == null || pos + len + 4 > SEGMENT) {
+            roll(n);
+        }
+        crc.reset();
+        crc.update(buf.array(), 0, buf.limit());
+        seg.duplicate().position(pos + 8).put(buf);
+        seg.putInt(pos + 4, (int) crc.getValue());
+        seg.putInt(pos, len);
+        pos += len;
+        seq = n;
+        return n;
+    }
+
+    private void roll(long next) throws IOException {
+        end();
+        for (var s : segments()) {
+            if (nextFirst(s) - 1 <= checkpoint) {
+                Files.deleteIfExists(s.toPath());
+            }
+        }
+        ch = open(file(next));
+        seg = map(ch);
+        pos = 0;
+    }
+
+    /*
+     * The mark keeps a reader from taking the zeros behind it for the end of
+     * the log.
+     */
+    private void end() throws IOException {
+        if (seg == null) {
+            return;
+        }
+        seg.putInt(pos, -1);
+        seg.force();
+        ch.close();
+        ch = null;
+        seg = null;
+    }
+
+    private long nextFirst(File segment) {
+        var s = segments();
+        var i = s.indexOf(segment);
+        return i < 0 || i + 1 >= s.size() ? Long.MAX_VALUE : first(s.get(i + 1));
+    }
+
+    synchronized void force() {
+        if (seg != null) {
+            seg.force();
+        }
+    }
+
+    synchronized void close() {
+        if (ch != null) {
+            force();
+            try {
+                ch.close();
+            } catch (IOException exception) {
+                LOG.write(exception, this);
+            }
+            ch = null;
+            seg = null;
+        }
+    }
+
+    /*
+     * Hands every record above the sequence to the sink in order, returns
+     * the last sequence read.
+     */
+    synchronized long replay(long after, Sink sink) throws IOException {
+        var last = after;
+        for (var s : segments()) {
+            if (nextFirst(s) - 1 <= after) {
+                continue;
+            }
+            var r = scan(s, first(s) - 1, (n, type, b) -> {
+                if (n > after) {
+                    deliver(n, type, b, sink);
+                }
+            });
+            last = Math.max(last, r[0]);
+            if (r[2] == 0) {
+                break;
+            }
+        }
+        return last;
+    }
+
+    /*
+     * Returns the last good sequence, the position behind it and 1 when the
+     * segment ended with a roll mark.
+     */
+    private long[] scan(File file, long before, Visitor visitor) throws IOException {
+        try (var c = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var b = c.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(c.size(), SEGMENT));
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            var p = 0;
+            var n = before;
+            var c32 = new CRC32();
+            while (p + HEADER <= b.limit()) {
+                var len = b.getInt(p);
+                if (len == -1) {
+                    return new long[]{n, p, 1};
+                }
+                if (len < HEADER || p + len > b.limit()) {
+                    break;
+                }
+                var s = b.getLong(p + 8);
+                if (s != n + 1) {
+                    break;
+                }
+                c32.reset();
+                c32.update(b.duplicate().position(p + 8).limit(p + len));
+                if ((int) c32.getValue() != b.getInt(p + 4)) {
+                    break;
+                }
+                if (visitor != null) {
+                    var r = b.duplicate().position(p + HEADER).limit(p + len).slice();
+                    visitor.visit(s, b.get(p + 16), r.order(ByteOrder.LITTLE_ENDIAN));
+                }
+                n = s;
+                p += len;
+            }
+            return new long[]{n, p, 0};
+        }
+    }
+
+    private void deliver(long sequence, byte type, ByteBuffer b, Sink sink) {
+        try {
+            if (type == ORDER) {
+                sink.order(sequence, getOrder(b));
+            } else if (type == TRADE) {
+                var t = getTrade(b);
+                sink.trade(sequence, t, getString(b));
+            }
+        } catch (BufferUnderflowException exception) {
+            LOG.write(exception, this);
+        }
+    }
+
+    private List<File> segments() {
+        var f = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (f == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(f);
+        return new ArrayList<>(Arrays.asList(f));
+    }
+
+    private File file(long first) {
+        return new File(dir, String.format("%020d", first) + SUFFIX);
+    }
+
+    private static long first(File segment) {
+        var n = segment.getName();
+        return Long.parseLong(n.substring(0, n.length() - SUFFIX.length()));
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel) throws IOException {
+        var b = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        return b;
+    }
+
+    private void put(Order o) {
+        put(o.getOrderId());
+        put(o.getInstrumentId());
+        put(o.getExchangeId());
+        buf.putDouble(o.getPrice());
+        buf.putLong(o.getQuantity());
+        buf.putLong(o.getTradedQuantity());
+        put(o.getStatus());
+        put(o.getStatusMessage());
+        put(o.getDirection());
+        put(o.getOffset());
+        put(o.getTradingDay());
+        put(o.getUpdateTime());
+    }
+
+    private void put(Trade t) {
+        put(t.getTradeId());
+        put(t.getOrderId());
+        put(t.getInstrumentId());
+        put(t.getExchangeId());
+        buf.putDouble(t.getPrice());
+        buf.putLong(t.getQuantity());
+        put(t.getDirection());
+        put(t.getOffset());
+        put(t.getTradingDay());
+        put(t.getUpdateTime());
+    }
+
+    private void put(String s) {
+        if (s == null) {
+            buf.putShort((short) -1);
+            return;
+        }
+        var b = s.getBytes(StandardCharsets.UTF_8);
+        var n = Math.min(b.length, Short.MAX_VALUE);
+        buf.putShort((short) n);
+        buf.put(b, 0, n);
+    }
+
+    private void put(Enum<?> e) {
+        buf.put(e == null ? -1 : (byte) e.ordinal());
+    }
+
+    private void put(LocalDate d) {
+        buf.putLong(d == null ? NULL : d.toEpochDay());
+    }
+
+    private void put(LocalDateTime t) {
+        if (t == null) {
+            buf.putLong(NULL);
+        } else {
+            buf.putLong(t.toEpochSecond(ZONE) * 1_000_000_000L + t.getNano());
+        }
+    }
+
+    private static Order getOrder(ByteBuffer b) {
+        var o = new Order();
+        o.setOrderId(getString(b));
+        o.setInstrumentId(getString(b));
+        o.setExchangeId(getString(b));
+        o.setPrice(b.getDouble());
+        o.setQuantity(b.getLong());
+        o.setTradedQuantity(b.getLong());
+        var s = b.get();
+        o.setStatus(s < 0 ? null : Order.Status.values()[s]);
+        o.setStatusMessage(getString(b));
+        o.setDirection(getDirection(b));
+        o.setOffset(getOffset(b));
+        o.setTradingDay(getDate(b));
+        o.setUpdateTime(getTime(b));
+        return o;
+    }
+
+    private static Trade getTrade(ByteBuffer b) {
+        var t = new Trade();
+        t.setTradeId(getString(b));
+        t.setOrderId(getString(b));
+        t.setInstrumentId(getString(b));
+        t.setExchangeId(getString(b));
+        t.setPrice(b.getDouble());
+        t.setQuantity(b.getLong());
+        t.setDirection(getDirection(b));
+        t.setOffset(getOffset(b));
+        t.setTradingDay(getDate(b));
+        t.setUpdateTime(getTime(b));
+        return t;
+    }
+
+    private static String getString(ByteBuffer b) {
+        var n = b.getShort();
+        if (n < 0) {
+            return null;
+        }
+        var a = new byte[n];
+        b.get(a);
+        return new String(a, StandardCharsets.UTF_8);
+    }
+
+    private static Direction getDirection(ByteBuffer b) {
+        var x = b.get();
+        return x < 0 ? null : Direction.values()[x];
+    }
+
+    private static Offset getOffset(ByteBuffer b) {
+        var x = b.get();
+        return x < 0 ? null : Offset.values()[x];
+    }
+
+    private static LocalDate getDate(ByteBuffer b) {
+        var x = b.getLong();
+        return x == NULL ? null : LocalDate.ofEpochDay(x);
+    }
+
+    private static LocalDateTime getTime(ByteBuffer b) {
+        var x = b.getLong();
+        if (x == NULL) {
+            return null;
+        }
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(x, 1_000_000_000L),
+                (int) Math.floorMod(x, 1_000_000_000L), ZONE);
+    }
+
+    interface Sink {
+        void order(long sequence, Order order);
+
+        void trade(long sequence, Trade trade, String lotId);
+    }
+
+    private interface Visitor {
+        void visit(long sequence, byte type, ByteBuffer record);
+    }
+}
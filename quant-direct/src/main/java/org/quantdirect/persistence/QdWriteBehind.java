@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.persistence;
+
+import org.quantdirect.*;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Writes go into a bounded queue and return, one writer thread drains the
+ * queue and commits everything it drained in one transaction. A caller that
+ * needs the write on disk sets {@link Ack#COMMIT} and waits for the commit
+ * of its batch instead.
+ * <p>
+ * Reads only wait until the calling thread's own writes are committed, so
+ * they see what the same thread wrote but don't queue behind the writes of
+ * other threads, and then run on a reader connection of their own. The queue
+ * keeps the order of the writes, only the commits are grouped. When the
+ * queue is full the caller waits and the stall is counted.
+ * <p>
+ * A waiting caller whose write was not stored gets a
+ * {@link PersistenceException}, it never returns as if the write had
+ * committed.
+ * <p>
+ * The checkpoint only moves over logged events the database committed. A
+ * batch that fails is tried again, then write by write, and once a logged
+ * event fails the ones after it are held in the log. Each later batch first
+ * tries to apply the held events from the log, in order, and the writes
+ * behind them go on as usual when that succeeds.
+ */
+class QdWriteBehind extends Persistence {
+
+    static final int CAPACITY = 1 << 14;
+    static final int BATCH = 1 << 10;
+    static final String CHECKPOINT = "_WAL_CHECKPOINT";
+    static final int RETRIES = 3;
+    static final long BACKOFF_MILLIS = 10;
+
+    private final QdPersistence p;
+    private final BlockingQueue<Write> q;
+    private final AtomicLong full;
+    private final AtomicLong commits;
+    private final AtomicLong writes;
+    private final AtomicLong commitNanos;
+    private final AtomicLong maxCommitNanos;
+    private final Object lock;
+    private final AtomicLong checkpoint;
+    private final ThreadLocal<Write> last;
+    private volatile QdWal wal;
+    private volatile Ack ack;
+    private long applied;
+    private long logged;
+    private boolean behind;
+
+    QdWriteBehind(QdPersistence persistence) {
+        p = persistence;
+        q = new ArrayBlockingQueue<>(CAPACITY);
+        full = new AtomicLong(0);
+        commits = new AtomicLong(0);
+        writes = new AtomicLong(0);
+        commitNanos = new AtomicLong(0);
+        maxCommitNanos = new AtomicLong(0);
+        ack = Ack.ENQUEUE;
+        lock = new Object();
+        checkpoint = new AtomicLong(0);
+        last = new ThreadLocal<>();
+        METRICS.register("persistence.queue.depth", q::size);
+        METRICS.register("persistence.queue.full", full::get);
+        METRICS.register("persistence.writes", writes::get);
+        METRICS.register("persistence.commits", commits::get);
+        METRICS.register("persistence.commit.nanos", commitNanos::get);
+        METRICS.register("persistence.commit.max.nanos", maxCommitNanos::get);
+        METRICS.register("persistence.wal.sequence", () -> {
+            var w = wal;
+            return w == null ? 0 : w.sequence();
+        });
+        METRICS.register("persistence.wal.checkpoint", checkpoint::get);
+        var t = new Thread(this::drain, "QD-PERSISTENCE");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void setAck(Ack ack) {
+        if (ack != null) {
+            this.ack = ack;
+        }
+    }
+
+    @Override
+    public void flush() {
+        put(new Write(null, 0), true);
+    }
+
+    private void write(Consumer<QdPersistence> work) {
+        put(new Write(work, 0), ack == Ack.COMMIT);
+    }
+
+    /*
+     * Logging and queueing happen under one lock, so the queue holds logged
+     * events in the order of their sequences. Waiting for the commit happens
+     * outside. An event that couldn't be logged isn't queued either.
+     */
+    private void write(Logged log, Consumer<QdPersistence> work) {
+        Write w;
+        var c = ack == Ack.COMMIT;
+        synchronized (lock) {
+            var l = wal;
+            long n = 0;
+            if (l != null) {
+                try {
+                    n = log.append(l);
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                    throw new PersistenceException("Can't log event ahead.", throwable);
+                }
+            }
+            w = new Write(work, n);
+            if (c) {
+                w.waiter = Thread.currentThread();
+            }
+            enqueue(w);
+        }
+        if (c) {
+            await(w);
+        }
+    }
+
+    /*
+     * Replays under this object's monitor, the writer thread may be
+     * committing writes that aren't logged meanwhile.
+     */
+    @Override
+    public void open(File directory) {
+        flush();
+        synchronized (lock) {
+            if (wal != null) {
+                return;
+            }
+            try {
+                var l = new QdWal(directory);
+                synchronized (this) {
+                    applied = checkpoint(p.getProperty(CHECKPOINT));
+                    checkpoint.set(applied);
+                    var from = applied;
+                    behind = !replay(l, Long.MAX_VALUE);
+                    logged = Math.max(applied, l.sequence());
+                    l.checkpoint(applied);
+                    LOG.write("Replayed " + (applied - from) + " events from write-ahead log, checkpoint " +
+                              applied + ".", this);
+                    if (behind) {
+                        LOG.write("Write-ahead log held behind checkpoint " + applied + ".", this);
+                    }
+                }
+                wal = l;
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        }
+    }
+
+    /*
+     * Applies the logged events after the checkpoint up to the bound, in
+     * batches and write by write after a batch failed. Stops at the first
+     * event that fails and returns false.
+     */
+    private boolean replay(QdWal l, long upTo) throws IOException {
+        var b = new ArrayList<Write>(BATCH);
+        var ok = new boolean[]{true};
+        l.replay(applied, new QdWal.Sink() {
+            @Override
+            public void order(long sequence, Order order) {
+                add(new Write(x -> x.insert(order), sequence));
+            }
+
+            @Override
+            public void trade(long sequence, Trade trade, String lotId) {
+                add(new Write(x -> x.record(trade, lotId == null ? null : Lot.open(trade, lotId)), sequence));
+            }
+
+            private void add(Write w) {
+                if (!ok[0] || w.seq > upTo) {
+                    return;
+                }
+                b.add(w);
+                if (b.size() == BATCH) {
+                    ok[0] = applyInOrder(b);
+                    b.clear();
+                }
+            }
+        });
+        if (ok[0] && !b.isEmpty()) {
+            ok[0] = applyInOrder(b);
+        }
+        return ok[0];
+    }
+
+    private boolean applyInOrder(List<Write> writes) {
+        if (apply(writes, RETRIES) == null) {
+            return true;
+        }
+        for (var w : writes) {
+            if (apply(List.of(w), 1) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long checkpoint(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException exception) {
+            LOG.write(exception, this);
+            return 0;
+        }
+    }
+
+    @Override
+    public void record(Order order) {
+        var o = copy(order);
+        write(l -> l.append(o), x -> x.insert(o));
+    }
+
+    @Override
+    public void record(Collection<Order> orders) {
+        var a = new ArrayList<Order>(orders.size());
+        for (var o : orders) {
+            a.add(copy(o));
+        }
+        write(l -> {
+            long n = 0;
+            for (var o : a) {
+                n = l.append(o);
+            }
+            return n;
+        }, x -> x.insert(a));
+    }
+
+    @Override
+    public void record(Trade trade, Lot lot) {
+        var id = lot == null ? null : lot.getContract().getContractId();
+        write(l -> l.append(trade, id), x -> x.record(trade, lot));
+    }
+
+    private void put(Write w, boolean wait) {
+        if (wait) {
+            w.waiter = Thread.currentThread();
+        }
+        enqueue(w);
+        if (wait) {
+            await(w);
+        }
+    }
+
+    /*
+     * A write that couldn't be queued is lost, the caller learns it whether
+     * it waits for the commit or not.
+     */
+    private void enqueue(Write w) {
+        if (!q.offer(w)) {
+            full.incrementAndGet();
+            try {
+                q.put(w);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Persistence write interrupted.", exception);
+            }
+        }
+        last.set(w);
+    }
+
+    /*
+     * The writer commits in queue order, so the thread's last write being
+     * done means all of its writes are. Whether they failed is for the
+     * writing call to report, not for a later read.
+     */
+    private void settle() {
+        var w = last.get();
+        if (w == null) {
+            return;
+        }
+        if (!w.done) {
+            w.waiter = Thread.currentThread();
+            while (!w.done) {
+                LockSupport.park(this);
+            }
+        }
+        last.remove();
+    }
+
+    private void await(Write w) {
+        while (!w.done) {
+            LockSupport.park(this);
+        }
+        if (w.failure != null) {
+            throw new PersistenceException("Persistence write failed.", w.failure);
+        }
+    }
+
+    private void drain() {
+        var b = new ArrayList<Write>(BATCH);
+        while (true) {
+            try {
+                b.add(q.take());
+            } catch (InterruptedException exception) {
+                LOG.write("Persistence writer interrupted.", this);
+                return;
+            }
+            q.drainTo(b, BATCH - 1);
+            commit(b);
+            b.clear();
+        }
+    }
+
+    /*
+     * Writes whose events the log caught up with are already committed. A
+     * logged write can't commit while an event before it is held, it is held
+     * in the log as well.
+     */
+    private synchronized void commit(List<Write> batch) {
+        var s = System.nanoTime();
+        for (var w : batch) {
+            logged = Math.max(logged, w.seq);
+        }
+        if (behind) {
+            catchUp();
+        }
+        var todo = new ArrayList<Write>(batch.size());
+        for (var w : batch) {
+            if (w.seq > 0 && w.seq <= applied) {
+                continue;
+            }
+            if (w.seq > 0 && behind) {
+                w.failure = held();
+            } else if (w.work != null) {
+                todo.add(w);
+            }
+        }
+        if (!todo.isEmpty() && apply(todo, RETRIES) != null) {
+            for (var w : todo) {
+                if (w.seq > 0 && behind) {
+                    w.failure = held();
+                    continue;
+                }
+                var t = apply(List.of(w), 1);
+                if (t != null) {
+                    w.failure = t;
+                    behind |= w.seq > 0;
+                }
+            }
+        }
+        var n = System.nanoTime() - s;
+        commitNanos.set(n);
+        maxCommitNanos.accumulateAndGet(n, Math::max);
+        commits.incrementAndGet();
+        writes.addAndGet(batch.size());
+        for (var w : batch) {
+            w.done = true;
+            var t = w.waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /*
+     * Every event logged up to this batch is complete in the log, the ones
+     * logged later are still on their way.
+     */
+    private void catchUp() {
+        var l = wal;
+        if (l == null) {
+            return;
+        }
+        var upTo = logged;
+        try {
+            if (replay(l, upTo) && applied >= upTo) {
+                behind = false;
+                LOG.write("Write-ahead log caught up to " + applied + ".", this);
+            }
+        } catch (IOException exception) {
+            LOG.write(exception, this);
+        }
+    }
+
+    private Throwable held() {
+        return new IllegalStateException("Held in write-ahead log behind " + (applied + 1) + ".");
+    }
+
+    /*
+     * The writes commit with the checkpoint they reach, so after a crash the
+     * log is replayed from exactly the first event the database misses. A
+     * failed group rolls back and is tried again after a pause, the writer
+     * connection is reopened meanwhile if it broke.
+     */
+    private Throwable apply(List<Write> writes, int tries) {
+        var x = applied;
+        for (var w : writes) {
+            x = Math.max(x, w.seq);
+        }
+        final var cp = x;
+        Throwable t = null;
+        for (int i = 0; i < tries; ++i) {
+            if (i > 0) {
+                try {
+                    Thread.sleep(BACKOFF_MILLIS << i);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            try {
+                p.group(() -> {
+                    for (var w : writes) {
+                        if (w.work != null) {
+                            w.work.accept(p);
+                        }
+                    }
+                    if (cp > applied) {
+                        p.setProperty(CHECKPOINT, Long.toString(cp));
+                    }
+                });
+                if (cp > applied) {
+                    applied = cp;
+                    checkpoint.set(cp);
+                    var l = wal;
+                    if (l != null) {
+                        l.checkpoint(cp);
+                    }
+                }
+                return null;
+            } catch (IOException exception) {
+                LOG.write(exception, this);
+                return null;
+            } catch (Throwable throwable) {
+                t = throwable;
+            }
+        }
+        LOG.write(t, this);
+        return t;
+    }
+
+    @Override
+    public void insert(Trade trade) {
+        write(x -> x.insert(trade));
+    }
+
+    @Override
+    public void insert(Order order) {
+        var o = copy(order);
+        write(x -> x.insert(o));
+    }
+
+    @Override
+    public void insert(Collection<Order> orders) {
+        var l = new ArrayList<Order>(orders.size());
+        for (var o : orders) {
+            l.add(copy(o));
+        }
+        write(x -> x.insert(l));
+    }
+
+    /*
+     * Orders change while they work, the row has to show the state at the
+     * time of the call.
+     */
+    private Order copy(Order order) {
+        var o = new Order();
+        o.setOrderId(order.getOrderId());
+        o.setInstrumentId(order.getInstrumentId());
+        o.setExchangeId(order.getExchangeId());
+        o.setPrice(order.getPrice());
+        o.setQuantity(order.getQuantity());
+        o.setTradedQuantity(order.getTradedQuantity());
+        o.setStatus(order.getStatus());
+        o.setStatusMessage(order.getStatusMessage());
+        o.setDirection(order.getDirection());
+        o.setOffset(order.getOffset());
+        o.setTradingDay(order.getTradingDay());
+        o.setUpdateTime(order.getUpdateTime());
+        return o;
+    }
+
+    @Override
+    public void insert(Contract contract) {
+        write(x -> x.insert(contract));
+    }
+
+    @Override
+    public void insert(Lot lot) {
+        write(x -> x.insert(lot));
+    }
+
+    @Override
+    public void closeContract(String instrumentId, String exchangeId, Direction direction, double price,
+            long quantity, LocalDateTime closeTime) {
+        write(x -> x.closeContract(instrumentId, exchangeId, direction, price, quantity, closeTime));
+    }
+
+    @Override
+    public void setProperty(String key, String value) {
+        write(x -> x.setProperty(key, value));
+    }
+
+    @Override
+    public Collection<ContractName> getContractNames() {
+        settle();
+        return p.getContractNames();
+    }
+
+    @Override
+    public Collection<Contract> getContracts(String instrumentId, String exchangeId, Direction direction) {
+        settle();
+        return p.getContracts(instrumentId, exchangeId, direction);
+    }
+
+    @Override
+    public List<Lot> getLots(String instrumentId, String exchangeId, Direction direction) {
+        settle();
+        return p.getLots(instrumentId, exchangeId, direction);
+    }
+
+    @Override
+    public long countContractsBefore(String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        settle();
+        return p.countContractsBefore(instrumentId, exchangeId, direction, before);
+    }
+
+    @Override
+    public long countOpenContractsBefore(String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        settle();
+        return p.countOpenContractsBefore(instrumentId, exchangeId, direction, before);
+    }
+
+    @Override
+    public String getProperty(String key) {
+        settle();
+        return p.getProperty(key);
+    }
+
+    private static class Write {
+
+        private final Consumer<QdPersistence> work;
+        private final long seq;
+        private volatile Thread waiter;
+        private volatile Throwable failure;
+        private volatile boolean done;
+
+        Write(Consumer<QdPersistence> work, long seq) {
+            this.work = work;
+            this.seq = seq;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Logged {
+        long append(QdWal wal) throws IOException;
+    }
+}
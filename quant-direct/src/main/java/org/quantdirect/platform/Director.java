@@ -20,6 +20,9 @@ package org.quantdirect.platform;
 import org.quantdirect.Datafeed;
 import org.quantdirect.Gateway;
 import org.quantdirect.Quanter;
+import org.quantdirect.persistence.Persistence;
+
+import java.util.Map;
 
 public abstract class Director {
 
@@ -40,6 +43,49 @@ public abstract class Director {
 
     public abstract void setDatafeed(Datafeed datafeed);
 
+    public abstract void setWaitStrategy(WaitStrategy strategy);
+
+    public abstract void setRingSize(int size);
+
+    public abstract void setDispatchThreads(int threads);
+
+    public abstract void setExecution(Execution execution);
+
+    public abstract void setTickPooling(boolean pooled);
+
+    public abstract void setRecording(boolean record);
+
+    /**
+     * Rejects orders larger than the size, zero or less means no limit.
+     */
+    public abstract void setMaxOrderSize(long size);
+
+    /**
+     * Caps the contracts of a side that may be held or opening at once per
+     * instrument, a negative value means no limit.
+     */
+    public abstract void setMaxPosition(long position);
+
+    /**
+     * Caps the position of one instrument, overriding
+     * {@link #setMaxPosition(long)}. A negative value takes the default back.
+     */
+    public abstract void setMaxPosition(String instrumentId, long position);
+
+    /**
+     * Limits the orders sent per second, zero or less means no limit.
+     */
+    public abstract void setOrderRate(int perSecond);
+
+    /**
+     * Order and trade records are written behind the order path. With
+     * {@link Persistence.Ack#ENQUEUE}, the default, a write returns once it is
+     * queued. With {@link Persistence.Ack#COMMIT} it returns once committed.
+     */
+    public abstract void setDurability(Persistence.Ack ack);
+
+    public abstract Map<String, Long> getMetrics();
+
     public abstract void start();
 
     public abstract void stop();
@@ -49,4 +95,12 @@ public abstract class Director {
     public enum Status {
         START_FAIL, STATED, STOP_FAIL, STOPPED
     }
+
+    public enum WaitStrategy {
+        BUSY_SPIN, YIELD, PARK
+    }
+
+    public enum Execution {
+        SHARED, MAILBOX, VIRTUAL
+    }
 }
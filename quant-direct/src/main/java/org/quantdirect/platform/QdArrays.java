@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for the copy-on-write arrays read by the dispatch threads. They
+ * never modify the array passed in.
+ */
+final class QdArrays {
+
+    private QdArrays() {
+    }
+
+    static <T> T[] add(T[] a, T x) {
+        for (var y : a) {
+            if (y.equals(x)) {
+                return a;
+            }
+        }
+        var n = Arrays.copyOf(a, a.length + 1);
+        n[a.length] = x;
+        return n;
+    }
+
+    static <T> T[] remove(T[] a, T x) {
+        var n = Arrays.copyOf(a, a.length);
+        int k = 0;
+        for (var y : a) {
+            if (!y.equals(x)) {
+                n[k++] = y;
+            }
+        }
+        return k == a.length ? a : Arrays.copyOf(n, k);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Basket;
+import org.quantdirect.Order;
+import org.quantdirect.persistence.Persistence;
+import org.quantdirect.tools.LOG;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Legs of one basket. The first state every leg reports is held back and
+ * all of them are stored in one batch, the later states of a leg are stored
+ * one by one as usual. The batch is stored once every leg has reported or
+ * completed without reporting, as a leg refused by risk does, or earlier
+ * when a leg reports again before the others, so its states stay in order.
+ */
+class QdBasket implements Basket {
+
+    private final List<Order> o;
+    private final List<CompletableFuture<Order>> l;
+    private final CompletableFuture<List<Order>> f;
+    private final AtomicLong traded;
+    private final boolean[] reported;
+    private final boolean[] settled;
+    private final List<Order> pending;
+    private int left;
+    private boolean flushed;
+
+    QdBasket(Collection<Order> orders) {
+        o = List.copyOf(orders);
+        l = new ArrayList<>(o.size());
+        f = new CompletableFuture<>();
+        traded = new AtomicLong(0);
+        reported = new boolean[o.size()];
+        settled = new boolean[o.size()];
+        left = o.size();
+        pending = new ArrayList<>(o.size());
+    }
+
+    void watch(List<CompletableFuture<Order>> legs) {
+        l.addAll(legs);
+        for (int i = 0; i < legs.size(); ++i) {
+            final int leg = i;
+            legs.get(i).whenComplete((r, t) -> {
+                settle(leg);
+                if (t != null) {
+                    f.completeExceptionally(t);
+                }
+            });
+        }
+        CompletableFuture.allOf(legs.toArray(CompletableFuture<?>[]::new)).thenRun(() -> f.complete(o));
+    }
+
+    /*
+     * Returns false when the caller has to store the order itself.
+     */
+    synchronized boolean report(int leg, Order order) {
+        if (flushed) {
+            return false;
+        }
+        if (reported[leg]) {
+            flush();
+            return false;
+        }
+        reported[leg] = true;
+        pending.add(order);
+        settle(leg);
+        return true;
+    }
+
+    /*
+     * Counts a leg the first time it reports or completes.
+     */
+    private synchronized void settle(int leg) {
+        if (settled[leg]) {
+            return;
+        }
+        settled[leg] = true;
+        if (--left == 0) {
+            flush();
+        }
+    }
+
+    synchronized void flush() {
+        if (flushed) {
+            return;
+        }
+        flushed = true;
+        try {
+            Persistence.instance().record(pending);
+        } catch (Throwable throwable) {
+            LOG.write(throwable, this);
+        }
+        pending.clear();
+    }
+
+    void traded(long quantity) {
+        traded.addAndGet(quantity);
+    }
+
+    @Override
+    public List<Order> getOrders() {
+        return o;
+    }
+
+    @Override
+    public long getQuantity() {
+        long n = 0;
+        for (var x : o) {
+            n += x.getQuantity();
+        }
+        return n;
+    }
+
+    @Override
+    public long getTradedQuantity() {
+        return traded.get();
+    }
+
+    @Override
+    public boolean isDone() {
+        for (var x : l) {
+            if (!x.isDone()) {
+                return false;
+            }
+        }
+        return !l.isEmpty() || o.isEmpty();
+    }
+
+    @Override
+    public CompletableFuture<List<Order>> getFuture() {
+        return f;
+    }
+}
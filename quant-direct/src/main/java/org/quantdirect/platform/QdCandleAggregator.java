@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Candle;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.Tick;
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.tools.CLOCK;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.TOOLS;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds candles of any minute interval from the tick stream. Every
+ * instrument keeps a one-minute bar that is updated in O(1) per tick. A larger
+ * bar is merged from the closed bars of the largest subscribed interval that
+ * divides it, so each bar is computed once per instrument and the same
+ * {@link Candle} is handed to all of its subscribers. Indicators subscribed to
+ * an interval are updated with the closed bar before its handlers run.
+ * <p>
+ * Bar state is only touched by the instrument's dispatch partition. Bars that
+ * stop receiving ticks are closed on the minute boundaries of the platform
+ * clock by a {@link QdTimer} task that posts the sweep to the partitions.
+ * <p>
+ * A simulation builds its candles with an aggregator of its own that has no
+ * dispatcher and no timer. It is driven from one thread, which moves its
+ * time forward with {@link #advance(long)} and closes the last bars with
+ * {@link #flush()}.
+ */
+public class QdCandleAggregator {
+
+    private static final long OFFSET_MINUTES = 8 * 60;
+    private static final long GRACE_MILLIS = 1_000L;
+    private static final MarketHandler[] EMPTY = new MarketHandler[0];
+    private static final Indicator[] NONE = new Indicator[0];
+
+    private final QdDispatcher d;
+    private final QdInstruments reg;
+    private volatile Series[] s;
+    private volatile QdTimer.QdTimeout timer;
+    private volatile boolean closed;
+
+    QdCandleAggregator(QdDispatcher dispatcher) {
+        d = dispatcher;
+        reg = QdInstruments.instance();
+        s = new Series[0];
+        schedule();
+    }
+
+    public QdCandleAggregator() {
+        d = null;
+        reg = QdInstruments.instance();
+        s = new Series[0];
+    }
+
+    void close() {
+        closed = true;
+        var x = timer;
+        if (x != null) {
+            x.cancel();
+        }
+    }
+
+    private void schedule() {
+        if (closed) {
+            return;
+        }
+        var delay = 60_000L - Math.floorMod(CLOCK.millis(), 60_000L) + GRACE_MILLIS;
+        timer = QdTimer.instance().schedule(() -> {
+            sweep();
+            schedule();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void subscribe(String instrumentId, int minutes, MarketHandler handler) {
+        var v = interval(instrumentId, minutes);
+        v.h = QdArrays.add(v.h, handler);
+    }
+
+    public synchronized void subscribe(String instrumentId, int minutes, Indicator indicator) {
+        var v = interval(instrumentId, minutes);
+        v.ind = QdArrays.add(v.ind, indicator);
+    }
+
+    private Interval interval(String instrumentId, int minutes) {
+        if (minutes <= 0) {
+            throw new IllegalArgumentException("Candle minutes must be positive: " + minutes + ".");
+        }
+        var i = reg.id(instrumentId);
+        var a = Arrays.copyOf(s, Math.max(s.length, i + 1));
+        if (a[i] == null) {
+            a[i] = new Series();
+        }
+        s = a;
+        return a[i].interval(minutes);
+    }
+
+    public synchronized void remove(String instrumentId) {
+        var x = series(reg.find(instrumentId));
+        if (x != null) {
+            for (var v : x.all) {
+                v.h = EMPTY;
+                v.ind = NONE;
+            }
+        }
+    }
+
+    public synchronized void remove(String instrumentId, MarketHandler handler) {
+        var x = series(reg.find(instrumentId));
+        if (x != null) {
+            for (var v : x.all) {
+                v.h = QdArrays.remove(v.h, handler);
+            }
+        }
+    }
+
+    public synchronized void remove(String instrumentId, Indicator indicator) {
+        var x = series(reg.find(instrumentId));
+        if (x != null) {
+            for (var v : x.all) {
+                v.ind = QdArrays.remove(v.ind, indicator);
+            }
+        }
+    }
+
+    public boolean has(String instrumentId) {
+        var x = series(reg.find(instrumentId));
+        if (x == null) {
+            return false;
+        }
+        for (var v : x.all) {
+            if (v.h.length > 0 || v.ind.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void onTick(Tick tick) {
+        onTick(reg.find(tick.getInstrumentId()), tick);
+    }
+
+    void onTick(int instrument, Tick tick) {
+        var x = series(instrument);
+        if (x == null || tick.getUpdateTimeNanos() == 0) {
+            return;
+        }
+        x.onTick(tick);
+    }
+
+    private Series series(int instrument) {
+        var a = s;
+        if (instrument < 0 || instrument >= a.length) {
+            return null;
+        }
+        return a[instrument];
+    }
+
+    private void sweep() {
+        var m = Math.floorDiv(CLOCK.millis() - GRACE_MILLIS, 60_000L) + OFFSET_MINUTES;
+        for (int k = 0; k < d.partitions(); ++k) {
+            final int partition = k;
+            d.execute(k, () -> sweep(partition, m));
+        }
+    }
+
+    private void sweep(int partition, long minute) {
+        var a = s;
+        for (int i = 0; i < a.length; ++i) {
+            if (a[i] != null && d.partition(i) == partition) {
+                a[i].close(minute);
+            }
+        }
+    }
+
+    /**
+     * Closes the bars that ended by the time, as the timer does on the
+     * platform clock. The time is epoch nanoseconds and only moves forward.
+     */
+    public void advance(long epochNanos) {
+        var m = Math.floorDiv(epochNanos / 1_000_000L - GRACE_MILLIS, 60_000L) + OFFSET_MINUTES;
+        for (var x : s) {
+            if (x != null) {
+                x.close(m);
+            }
+        }
+    }
+
+    /**
+     * Closes every open bar, at the end of a session the next tick belongs
+     * to another trading day.
+     */
+    public void flush() {
+        for (var x : s) {
+            if (x != null) {
+                x.close(Long.MAX_VALUE);
+            }
+        }
+    }
+
+    private static long minute(long epochNanos) {
+        return Math.floorDiv(epochNanos, 60_000_000_000L) + OFFSET_MINUTES;
+    }
+
+    private class Series {
+
+        private final Interval base;
+        private volatile Interval[] all;
+        private long lastVolume;
+
+        Series() {
+            base = new Interval(1);
+            all = new Interval[]{base};
+            lastVolume = -1;
+        }
+
+        Interval interval(int minutes) {
+            Interval src = base;
+            for (var v : all) {
+                if (v.minutes == minutes) {
+                    return v;
+                }
+                if (v.minutes < minutes && minutes % v.minutes == 0 && v.minutes > src.minutes) {
+                    src = v;
+                }
+            }
+            var x = new Interval(minutes);
+            var c = Arrays.copyOf(src.children, src.children.length + 1);
+            c[src.children.length] = x;
+            src.children = c;
+            var n = Arrays.copyOf(all, all.length + 1);
+            n[all.length] = x;
+            Arrays.sort(n, (p, q) -> Integer.compare(p.minutes, q.minutes));
+            all = n;
+            return x;
+        }
+
+        /*
+         * Smaller intervals close first and merge into the larger ones, which
+         * close on their own when they end by then too.
+         */
+        void close(long minute) {
+            for (var v : all) {
+                if (v.open && v.end <= minute) {
+                    v.close();
+                }
+            }
+        }
+
+        void onTick(Tick tick) {
+            var v = tick.getTradeVolume();
+            long dv = 0;
+            if (lastVolume >= 0) {
+                dv = v >= lastVolume ? v - lastVolume : v;
+            }
+            lastVolume = v;
+            base.update(tick, minute(tick.getUpdateTimeNanos()), dv);
+        }
+    }
+
+    private class Interval {
+
+        private final int minutes;
+        private volatile MarketHandler[] h;
+        private volatile Indicator[] ind;
+        private volatile Interval[] children;
+        private boolean open;
+        private long start;
+        private long end;
+        private long lastEnd;
+        private String instrumentId;
+        private String exchangeId;
+        private double openPrice;
+        private double highPrice;
+        private double lowPrice;
+        private double closePrice;
+        private long volume;
+        private long openInterest;
+        private long tradingDay;
+
+        Interval(int minutes) {
+            this.minutes = minutes;
+            h = EMPTY;
+            ind = NONE;
+            children = new Interval[0];
+        }
+
+        void update(Tick tick, long minute, long dv) {
+            if (minute < lastEnd) {
+                minute = lastEnd;
+            }
+            if (open && minute >= end) {
+                close();
+            }
+            var p = tick.getClosePrice();
+            if (!open) {
+                begin(minute, tick.getInstrumentId(), tick.getExchangeId(), p);
+            }
+            highPrice = Math.max(highPrice, p);
+            lowPrice = Math.min(lowPrice, p);
+            closePrice = p;
+            volume += dv;
+            openInterest = tick.getOpenInterest();
+            tradingDay = tick.getTradingDayEpochDay();
+        }
+
+        void merge(Interval src) {
+            if (open && src.start >= end) {
+                close();
+            }
+            if (!open) {
+                begin(src.start, src.instrumentId, src.exchangeId, src.openPrice);
+            }
+            highPrice = Math.max(highPrice, src.highPrice);
+            lowPrice = Math.min(lowPrice, src.lowPrice);
+            closePrice = src.closePrice;
+            volume += src.volume;
+            openInterest = src.openInterest;
+            tradingDay = src.tradingDay;
+            if (src.end >= end) {
+                close();
+            }
+        }
+
+        private void begin(long minute, String instrument, String exchange, double price) {
+            open = true;
+            start = Math.floorDiv(minute, minutes) * minutes;
+            end = start + minutes;
+            instrumentId = instrument;
+            exchangeId = exchange;
+            openPrice = price;
+            highPrice = price;
+            lowPrice = price;
+            closePrice = price;
+            volume = 0;
+        }
+
+        void close() {
+            open = false;
+            lastEnd = end;
+            var a = h;
+            var d = ind;
+            if (a.length > 0 || d.length > 0) {
+                var c = candle();
+                for (var x : d) {
+                    try {
+                        x.onCandle(c);
+                    } catch (Throwable throwable) {
+                        LOG.write(throwable, this);
+                    }
+                }
+                for (var x : a) {
+                    try {
+                        x.onCandle(c);
+                    } catch (Throwable throwable) {
+                        LOG.write(throwable, this);
+                    }
+                }
+            }
+            for (var x : children) {
+                x.merge(this);
+            }
+        }
+
+        private Candle candle() {
+            var c = new Candle();
+            c.setCandleId(TOOLS.nextId());
+            c.setInstrumentId(instrumentId);
+            c.setExchangeId(exchangeId);
+            c.setOpenPrice(openPrice);
+            c.setHighPrice(highPrice);
+            c.setLowPrice(lowPrice);
+            c.setClosePrice(closePrice);
+            c.setTradeVolume(volume);
+            c.setOpenInterest(openInterest);
+            c.setMinutes(minutes);
+            c.setTradingDay(tradingDay == 0 ? null : LocalDate.ofEpochDay(tradingDay));
+            c.setUpdateTime(LocalDateTime.ofEpochSecond(start * 60, 0, ZoneOffset.UTC));
+            return c;
+        }
+    }
+}
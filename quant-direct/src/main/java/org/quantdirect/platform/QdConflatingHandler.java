@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Candle;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.Tick;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps only the newest tick of every instrument for one handler. The
+ * dispatch thread overwrites the instrument's slot and the handler drains it
+ * on its own serial executor, so a handler that falls behind skips stale ticks
+ * instead of building a backlog. Candles and errors are never conflated.
+ * Pooled ticks are copied before they are kept.
+ */
+class QdConflatingHandler implements MarketHandler {
+
+    private final MarketHandler h;
+    private final Executor x;
+    private final Map<String, Slot> s;
+    private final LongAdder n;
+    private final boolean pooled;
+
+    QdConflatingHandler(MarketHandler handler, Executor executor, LongAdder conflated, boolean pooled) {
+        h = handler;
+        x = executor;
+        s = new ConcurrentHashMap<>();
+        n = conflated;
+        this.pooled = pooled;
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        var slot = s.get(tick.getInstrumentId());
+        if (slot == null) {
+            slot = s.computeIfAbsent(tick.getInstrumentId(), k -> new Slot());
+        }
+        if (slot.latest.getAndSet(pooled ? tick.copy() : tick) == null) {
+            x.execute(slot);
+        } else {
+            n.increment();
+        }
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        x.execute(() -> h.onCandle(candle));
+    }
+
+    @Override
+    public void onError(int code, String message) {
+        x.execute(() -> h.onError(code, message));
+    }
+
+    private class Slot implements Runnable {
+
+        private final AtomicReference<Tick> latest = new AtomicReference<>();
+
+        @Override
+        public void run() {
+            var t = latest.getAndSet(null);
+            if (t != null) {
+                h.onTick(t);
+            }
+        }
+    }
+}
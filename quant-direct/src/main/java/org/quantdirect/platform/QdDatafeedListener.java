@@ -20,10 +20,25 @@ package org.quantdirect.platform;
 import org.quantdirect.*;
 import org.quantdirect.loader.Loader;
 import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class QdDatafeedListener implements DatafeedListener {
 
-    QdDatafeedListener() {
+    private final QdOptions opt;
+    private final Map<Quanter, QdMailbox> mb;
+    private ExecutorService pool;
+    private QdVirtualExecutor vpool;
+    private QdFeed fd;
+
+    QdDatafeedListener(QdOptions options) {
+        opt = options;
+        mb = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -51,48 +66,113 @@ class QdDatafeedListener implements DatafeedListener {
     }
 
     void callStart() {
-        final QdDatafeedListener k = this;
         Loader.instance().copyDirects().stream().parallel().forEach(direct -> {
-            try {
-                direct.onStart(QdMaster.instance());
-            } catch (Throwable throwable) {
-                LOG.write(throwable, k);
-            }
+            call(direct, () -> direct.onStart(QdMaster.instance()));
         });
     }
 
     void callOpen() {
-        final QdDatafeedListener k = this;
         final Transaction tr = new QdTransaction();
-        final Feed fd = new QdFeed();
+        final QdFeed fd = openFeed();
         Loader.instance().copyDirects().stream().parallel().forEach(direct -> {
-            try {
-                direct.onOpen(tr, fd);
-            } catch (Throwable throwable) {
-                LOG.write(throwable, k);
-            }
+            call(direct, () -> direct.onOpen(transaction(direct, tr), feed(direct, fd)));
         });
     }
 
-    void callClose() {
-        final QdDatafeedListener k = this;
-        Loader.instance().copyDirects().stream().parallel().forEach(direct -> {
+    private void call(Quanter direct, Runnable callback) {
+        if (opt.exec != Director.Execution.SHARED) {
+            mailbox(direct).execute(callback);
+        } else {
             try {
-                direct.onClose();
+                callback.run();
             } catch (Throwable throwable) {
-                LOG.write(throwable, k);
+                LOG.write(throwable, this);
             }
+        }
+    }
+
+    private Feed feed(Quanter direct, QdFeed fd) {
+        if (opt.exec != Director.Execution.SHARED) {
+            return new QdMailboxFeed(fd, mailbox(direct), opt.pooled);
+        } else {
+            return fd;
+        }
+    }
+
+    private Transaction transaction(Quanter direct, Transaction tr) {
+        if (opt.exec != Director.Execution.SHARED) {
+            return new QdMailboxTransaction(tr, mailbox(direct));
+        } else {
+            return tr;
+        }
+    }
+
+    private QdMailbox mailbox(Quanter direct) {
+        return mb.computeIfAbsent(direct, k -> {
+            var m = new QdMailbox(QdMailbox.CAPACITY,
+                    opt.exec == Director.Execution.VIRTUAL ? virtualPool() : pool());
+            var n = "mailbox." + k.getClass().getName() + "@"
+                    + Integer.toHexString(System.identityHashCode(k));
+            METRICS.register(n + ".depth", m::depth);
+            METRICS.register(n + ".dropped", m::dropped);
+            return m;
         });
     }
 
+    private synchronized ExecutorService pool() {
+        if (pool == null) {
+            final var n = new AtomicInteger(0);
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                var t = new Thread(r, "QD-MAILBOX-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    /*
+     * Each mailbox batch runs on a thread of its own, so a quanter blocked in
+     * a trade parks only that thread and the other mailboxes keep running.
+     */
+    private synchronized QdVirtualExecutor virtualPool() {
+        if (vpool == null) {
+            vpool = QdVirtualExecutor.instance();
+        }
+        return vpool;
+    }
+
+    private synchronized QdFeed openFeed() {
+        closeFeed();
+        fd = new QdFeed(opt, pool());
+        return fd;
+    }
+
+    private synchronized void closeFeed() {
+        if (fd != null) {
+            fd.close();
+            fd = null;
+        }
+    }
+
+    /*
+     * The day's ticks still in the rings and mailboxes reach the quanters
+     * before they are closed.
+     */
+    void callClose() {
+        QdFeed f;
+        synchronized (this) {
+            f = fd;
+        }
+        if (f != null) {
+            f.drain();
+        }
+        QdMailbox.await(mb.values());
+        Loader.instance().copyDirects().stream().parallel().forEach(direct -> call(direct, direct::onClose));
+    }
+
     void callStop() {
-        final QdDatafeedListener k = this;
-        Loader.instance().copyDirects().stream().parallel().forEach(direct -> {
-            try {
-                direct.onStop();
-            } catch (Throwable throwable) {
-                LOG.write(throwable, k);
-            }
-        });
+        Loader.instance().copyDirects().stream().parallel().forEach(direct -> call(direct, direct::onStop));
+        closeFeed();
     }
 }
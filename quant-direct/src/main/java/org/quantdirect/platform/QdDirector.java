@@ -19,22 +19,29 @@ package org.quantdirect.platform;
 
 import org.h2.tools.Server;
 import org.quantdirect.Datafeed;
+import org.quantdirect.Direction;
 import org.quantdirect.Quanter;
 import org.quantdirect.Gateway;
 import org.quantdirect.loader.Loader;
 import org.quantdirect.persistence.DbServer;
+import org.quantdirect.persistence.Persistence;
 import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
 
 class QdDirector extends Director {
     private final File base;
+    private final QdOptions opt;
     private Status status;
 
     QdDirector(String baseDirectory) {
         status = Status.STOPPED;
+        opt = new QdOptions();
         base = baseDir(baseDirectory);
         DbServer.start();
     }
@@ -71,11 +78,85 @@ class QdDirector extends Director {
         Loader.instance().setDatafeed(datafeed);
     }
 
+    @Override
+    public void setWaitStrategy(WaitStrategy strategy) {
+        if (strategy != null) {
+            opt.wait = strategy;
+        }
+    }
+
+    @Override
+    public void setRingSize(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of 2: " + size + ".");
+        }
+        opt.ring = size;
+    }
+
+    @Override
+    public void setDispatchThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Dispatch threads must be positive: " + threads + ".");
+        }
+        opt.threads = threads;
+    }
+
+    @Override
+    public void setExecution(Execution execution) {
+        if (execution != null) {
+            opt.exec = execution;
+        }
+    }
+
+    @Override
+    public void setTickPooling(boolean pooled) {
+        opt.pooled = pooled;
+    }
+
+    @Override
+    public void setRecording(boolean record) {
+        opt.journal = record ? new File(base, "journal") : null;
+    }
+
+    @Override
+    public void setMaxOrderSize(long size) {
+        QdRisk.instance().setMaxOrderSize(size);
+    }
+
+    @Override
+    public void setMaxPosition(long position) {
+        QdRisk.instance().setMaxPosition(position);
+    }
+
+    @Override
+    public void setMaxPosition(String instrumentId, long position) {
+        if (instrumentId != null) {
+            QdRisk.instance().setMaxPosition(instrumentId, position);
+        }
+    }
+
+    @Override
+    public void setOrderRate(int perSecond) {
+        QdRisk.instance().setOrderRate(perSecond);
+    }
+
+    @Override
+    public void setDurability(Persistence.Ack ack) {
+        Persistence.instance().setAck(ack);
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        return METRICS.snapshot();
+    }
+
     @Override
     public void start() {
         try {
+            Persistence.instance().open(new File(base, "wal"));
+            warm();
             Loader.instance().gateway().start(new QdGatewayListener());
-            Loader.instance().datafeed().start(new QdDatafeedListener());
+            Loader.instance().datafeed().start(new QdDatafeedListener(opt));
             status = Status.STATED;
         } catch (Throwable throwable) {
             status = Status.START_FAIL;
@@ -83,11 +164,36 @@ class QdDirector extends Director {
         }
     }
 
+    /*
+     * Positions held from earlier runs are read once here, after the
+     * write-ahead log brought the database up to date and before the gateway
+     * can report new trades, then the master and the risk checks take them
+     * from memory. The risk checks keep one position per instrument, so the
+     * exchanges an instrument trades on are added up first.
+     */
+    private void warm() {
+        var p = QdPositions.instance();
+        p.warm();
+        var held = new HashMap<String, long[]>();
+        for (var n : p.getContractNames()) {
+            var h = held.computeIfAbsent(n.instrumentId(), k -> new long[Direction.values().length]);
+            for (var d : Direction.values()) {
+                h[d.ordinal()] += p.getPosition(n.instrumentId(), n.exchangeId(), d);
+            }
+        }
+        held.forEach((i, h) -> {
+            for (var d : Direction.values()) {
+                QdRisk.instance().setPosition(i, d, h[d.ordinal()]);
+            }
+        });
+    }
+
     @Override
     public void stop() {
         try {
             Loader.instance().datafeed().stop();
             Loader.instance().gateway().stop();
+            Persistence.instance().flush();
             status = Status.STOPPED;
         } catch (Throwable throwable) {
             status = Status.STOP_FAIL;
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Candle;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.Tick;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Handler given to the datafeed. It spreads market data over a fixed set of
+ * dispatch threads, each fed by its own {@link QdRingBuffer}. The instrument
+ * is resolved to its {@link QdInstruments} id once here, and an id always
+ * maps to the same partition, so its ticks keep their order while unrelated
+ * instruments run on different cores.
+ * <p>
+ * Publishing only copies references into a ring, so the datafeed must call
+ * it from one thread at a time. With tick pooling the tick is copied into a
+ * {@link Tick} owned by the ring slot instead, so the datafeed may reuse its
+ * own instance and the slot's tick is recycled once dispatch returns.
+ * <p>
+ * Other threads hand work to a partition through {@link #execute(int, Runnable)}.
+ * The task runs on the partition thread between ring events, so state that
+ * belongs to one instrument is only ever touched by one thread.
+ * <p>
+ * Closing doesn't drop what is in flight, every partition drains its ring up
+ * to the published cursor and runs its queued tasks before its thread ends.
+ * What the datafeed publishes after that is dropped and counted.
+ */
+class QdDispatcher implements MarketHandler {
+
+    private static final long JOIN_MILLIS = 10_000L;
+    private static final long PARK_NANOS = 100_000L;
+
+    private final Partition[] p;
+    private final Consumer<QdEvent> h;
+    private final QdInstruments reg;
+    private final boolean pooled;
+    private final LongAdder dropped;
+    private volatile boolean running;
+
+    QdDispatcher(QdOptions options, Consumer<QdEvent> handler) {
+        var threads = options.threads;
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Dispatch threads must be positive: " + threads + ".");
+        }
+        h = handler;
+        reg = QdInstruments.instance();
+        pooled = options.pooled;
+        dropped = new LongAdder();
+        running = true;
+        p = new Partition[threads];
+        for (int i = 0; i < threads; ++i) {
+            p[i] = new Partition(i, new QdRingBuffer(options.ring, options.wait));
+        }
+        for (var x : p) {
+            x.t.start();
+        }
+        METRICS.register("feed.dispatch.threads", () -> p.length);
+        METRICS.register("feed.ring.capacity", () -> (long) p[0].r.capacity() * p.length);
+        METRICS.register("feed.ring.occupancy", this::occupancy);
+        METRICS.register("feed.ring.stalls", this::stalls);
+        METRICS.register("feed.ring.dropped", dropped::sum);
+    }
+
+    int partition(int instrument) {
+        return instrument < 0 ? 0 : instrument % p.length;
+    }
+
+    int partitions() {
+        return p.length;
+    }
+
+    void execute(int partition, Runnable task) {
+        execute(p[partition], task);
+    }
+
+    private void execute(Partition x, Runnable task) {
+        x.q.add(task);
+        LockSupport.unpark(x.t);
+    }
+
+    /*
+     * Waits until every partition has dispatched the events published before
+     * the call and run the tasks queued before it. Meant for the publishing
+     * thread, which can't add to the rings meanwhile.
+     */
+    boolean drain() {
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_MILLIS);
+        var done = new CountDownLatch(p.length);
+        for (var x : p) {
+            if (x.t == Thread.currentThread()) {
+                done.countDown();
+                continue;
+            }
+            var a = x.r.published();
+            while (x.r.dispatched() < a && x.t.isAlive()) {
+                if (System.nanoTime() > deadline) {
+                    LOG.write("Dispatch thread " + x.t.getName() + " doesn't finish draining.", this);
+                    return false;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            execute(x, done::countDown);
+        }
+        try {
+            return done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    long occupancy() {
+        long n = 0;
+        for (var x : p) {
+            n += x.r.occupancy();
+        }
+        return n;
+    }
+
+    long stalls() {
+        long n = 0;
+        for (var x : p) {
+            n += x.r.stalls();
+        }
+        return n;
+    }
+
+    /*
+     * Returns once the partition threads have drained, unless called from one
+     * of them or a handler doesn't return in time.
+     */
+    void close() {
+        for (var x : p) {
+            x.r.close();
+        }
+        running = false;
+        for (var x : p) {
+            LockSupport.unpark(x.t);
+        }
+        for (var x : p) {
+            if (x.t == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                x.t.join(JOIN_MILLIS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (x.t.isAlive()) {
+                LOG.write("Dispatch thread " + x.t.getName() + " doesn't finish draining.", this);
+            }
+        }
+    }
+
+    @Override
+    public void onTick(Tick tick) {
+        var i = reg.find(tick.getInstrumentId());
+        var r = p[partition(i)].r;
+        var e = r.claim();
+        if (e == null) {
+            dropped.increment();
+            return;
+        }
+        e.type = QdEvent.Type.TICK;
+        e.instrument = i;
+        if (pooled) {
+            e.pooled.copyFrom(tick);
+            e.tick = e.pooled;
+        } else {
+            e.tick = tick;
+        }
+        r.publish();
+    }
+
+    @Override
+    public void onCandle(Candle candle) {
+        var i = reg.find(candle.getInstrumentId());
+        var r = p[partition(i)].r;
+        var e = r.claim();
+        if (e == null) {
+            dropped.increment();
+            return;
+        }
+        e.type = QdEvent.Type.CANDLE;
+        e.instrument = i;
+        e.candle = candle;
+        r.publish();
+    }
+
+    @Override
+    public void onError(int code, String message) {
+        var r = p[0].r;
+        var e = r.claim();
+        if (e == null) {
+            dropped.increment();
+            return;
+        }
+        e.type = QdEvent.Type.ERROR;
+        e.instrument = -1;
+        e.code = code;
+        e.message = message;
+        r.publish();
+    }
+
+    private class Partition implements Runnable {
+
+        private final QdRingBuffer r;
+        private final Queue<Runnable> q;
+        private final Thread t;
+
+        Partition(int index, QdRingBuffer ring) {
+            r = ring;
+            q = new ConcurrentLinkedQueue<>();
+            t = new Thread(this, "QD-DISPATCH-" + index);
+            t.setDaemon(true);
+            METRICS.register("feed.dispatch." + index + ".occupancy", r::occupancy);
+            METRICS.register("feed.dispatch." + index + ".stalls", r::stalls);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    var n = r.drain(h);
+                    if (!runTasks() && n == 0) {
+                        r.idle();
+                    }
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+            finish();
+        }
+
+        private void finish() {
+            while (true) {
+                try {
+                    if (r.drain(h) == 0 && !runTasks()) {
+                        return;
+                    }
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+        }
+
+        private boolean runTasks() {
+            Runnable x;
+            boolean ran = false;
+            while ((x = q.poll()) != null) {
+                ran = true;
+                try {
+                    x.run();
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+            return ran;
+        }
+    }
+}
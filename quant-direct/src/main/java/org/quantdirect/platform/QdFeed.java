@@ -18,25 +18,130 @@
 package org.quantdirect.platform;
 
 import org.quantdirect.Candle;
+import org.quantdirect.Conflation;
 import org.quantdirect.Feed;
 import org.quantdirect.MarketHandler;
 import org.quantdirect.Tick;
+import org.quantdirect.Timeout;
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.indicator.IndicatorView;
+import org.quantdirect.journal.Journal;
 import org.quantdirect.loader.Loader;
 import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+/**
+ * Market data from the {@link org.quantdirect.Datafeed} is published into the
+ * rings of a {@link QdDispatcher} and fanned out to the subscribers on the
+ * dispatch threads, so the datafeed thread never runs strategy code. Candles
+ * of any minute interval are built on the same threads by a
+ * {@link QdCandleAggregator} before the tick reaches the subscribers.
+ * <p>
+ * Shared indicators are keyed by instrument, interval and
+ * {@link Indicator#key()}. The first indicator of a key is subscribed and
+ * computed once per tick or bar, every request for that key gets a read-only
+ * view of it, so the cost follows the number of distinct indicators rather
+ * than the number of quanters. Unsubscribing an indicator that was passed to
+ * share releases its request, the shared one is unsubscribed with the last.
+ * <p>
+ * When recording is on, every tick and candle from the datafeed is appended
+ * to the {@link Journal} on the dispatch thread before anything else sees it.
+ */
 class QdFeed implements Feed {
 
     private final QdMarketHandler h;
+    private final QdDispatcher in;
+    private final QdCandleAggregator agg;
+    private final Executor pool;
+    private final boolean pooled;
+    private final Map<MarketHandler, MarketHandler> cf;
+    private final LongAdder cz;
+    private final QdShares sh;
+    private final LongAdder sr;
+    private final Journal jr;
+    private final Set<Timeout> tm;
+    private final Set<QdMailbox> cm;
+    private final Set<String> ds;
 
-    QdFeed() {
+    QdFeed(QdOptions options, Executor executor) {
         h = new QdMarketHandler();
+        in = new QdDispatcher(options, h);
+        agg = new QdCandleAggregator(in);
+        pool = executor;
+        pooled = options.pooled;
+        cf = new ConcurrentHashMap<>();
+        cz = new LongAdder();
+        METRICS.register("feed.conflated", cz::sum);
+        sh = new QdShares();
+        sr = new LongAdder();
+        tm = ConcurrentHashMap.newKeySet();
+        cm = ConcurrentHashMap.newKeySet();
+        ds = ConcurrentHashMap.newKeySet();
+        METRICS.register("feed.indicator.shared", sh::size);
+        METRICS.register("feed.indicator.requests", sr::sum);
+        jr = options.journal == null ? null : Journal.open(options.journal);
+    }
+
+    MarketHandler conflate(MarketHandler handler, Executor executor) {
+        return new QdConflatingHandler(handler, executor, cz, pooled);
+    }
+
+    /*
+     * Returns once the ticks published so far have reached the subscribers,
+     * or their mailboxes in mailbox execution, and the conflating handlers
+     * of shared execution have run.
+     */
+    void drain() {
+        in.drain();
+        QdMailbox.await(cm);
+    }
+
+    /*
+     * The datafeed may keep its handlers past the day, as a journal replay
+     * does, so they are taken back before the rings close. The rings drain
+     * first, the ticks still in them go to the aggregator and the journal
+     * before those close.
+     */
+    void close() {
+        for (var i : ds) {
+            try {
+                drop(i);
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        }
+        in.close();
+        agg.close();
+        tm.forEach(Timeout::cancel);
+        tm.clear();
+        if (jr != null) {
+            jr.close();
+        }
+    }
+
+    private boolean has(String instrumentId) {
+        return h.has(instrumentId) || agg.has(instrumentId);
+    }
+
+    private void open(String instrumentId) throws IOException {
+        Loader.instance().datafeed().subscribe(instrumentId, in);
+        ds.add(instrumentId);
+    }
+
+    private void drop(String instrumentId) throws IOException {
+        ds.remove(instrumentId);
+        Loader.instance().datafeed().unsubscribe(instrumentId);
     }
 
     @Override
@@ -44,22 +149,129 @@ class QdFeed implements Feed {
         if (instrumentId == null || handler == null) {
             return;
         }
-        if (!h.has(instrumentId)) {
-            Loader.instance().datafeed().subscribe(instrumentId, h);
+        QdInstruments.instance().id(instrumentId);
+        if (!has(instrumentId)) {
+            open(instrumentId);
         }
         h.subscribe(instrumentId, handler);
     }
 
+    @Override
+    public void subscribe(String instrumentId, int minutes, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        QdInstruments.instance().id(instrumentId);
+        if (!has(instrumentId)) {
+            open(instrumentId);
+        }
+        agg.subscribe(instrumentId, minutes, handler);
+    }
+
+    @Override
+    public void subscribe(String instrumentId, MarketHandler handler, Conflation conflation) throws IOException {
+        if (conflation != Conflation.LATEST) {
+            subscribe(instrumentId, handler);
+            return;
+        }
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        subscribe(instrumentId, cf.computeIfAbsent(handler, k -> {
+            var m = new QdMailbox(QdMailbox.CAPACITY, pool);
+            cm.add(m);
+            return conflate(k, m);
+        }));
+    }
+
+    @Override
+    public void subscribe(String instrumentId, Indicator indicator) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            return;
+        }
+        QdInstruments.instance().id(instrumentId);
+        if (!has(instrumentId)) {
+            open(instrumentId);
+        }
+        h.subscribe(instrumentId, indicator);
+    }
+
+    @Override
+    public void subscribe(String instrumentId, int minutes, Indicator indicator) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            return;
+        }
+        QdInstruments.instance().id(instrumentId);
+        if (!has(instrumentId)) {
+            open(instrumentId);
+        }
+        agg.subscribe(instrumentId, minutes, indicator);
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId, Indicator indicator) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            return;
+        }
+        var x = sh.release(instrumentId, indicator);
+        if (x != null) {
+            remove(instrumentId, x);
+        }
+    }
+
+    private void remove(String instrumentId, Indicator indicator) throws IOException {
+        h.remove(instrumentId, indicator);
+        agg.remove(instrumentId, indicator);
+        if (!has(instrumentId)) {
+            drop(instrumentId);
+        }
+    }
+
+    @Override
+    public IndicatorView share(String instrumentId, Indicator indicator) throws IOException {
+        return share(instrumentId, 0, indicator, false);
+    }
+
+    @Override
+    public IndicatorView share(String instrumentId, int minutes, Indicator indicator) throws IOException {
+        if (minutes <= 0) {
+            throw new IllegalArgumentException("Candle minutes must be positive: " + minutes + ".");
+        }
+        return share(instrumentId, minutes, indicator, true);
+    }
+
+    private IndicatorView share(String instrumentId, int minutes, Indicator indicator,
+            boolean candle) throws IOException {
+        if (instrumentId == null || indicator == null) {
+            return null;
+        }
+        sr.increment();
+        synchronized (sh) {
+            var v = sh.request(instrumentId, minutes, indicator);
+            if (v == null) {
+                if (candle) {
+                    subscribe(instrumentId, minutes, indicator);
+                } else {
+                    subscribe(instrumentId, indicator);
+                }
+                v = sh.add(instrumentId, minutes, indicator);
+            }
+            return v;
+        }
+    }
+
     @Override
     public void unsubscribe(String instrumentId) throws IOException {
         if (instrumentId == null) {
             return;
         }
-        if (!h.has(instrumentId)) {
+        if (!has(instrumentId)) {
             return;
         }
-        Loader.instance().datafeed().unsubscribe(instrumentId);
+        drop(instrumentId);
         h.remove(instrumentId);
+        agg.remove(instrumentId);
+        sh.remove(instrumentId);
     }
 
     @Override
@@ -68,8 +280,13 @@ class QdFeed implements Feed {
             return;
         }
         h.remove(instrumentId, handler);
-        if (!h.has(instrumentId)) {
-            Loader.instance().datafeed().unsubscribe(instrumentId);
+        agg.remove(instrumentId, handler);
+        var c = cf.get(handler);
+        if (c != null) {
+            h.remove(instrumentId, c);
+        }
+        if (!has(instrumentId)) {
+            drop(instrumentId);
         }
     }
 
@@ -78,79 +295,198 @@ class QdFeed implements Feed {
         return Loader.instance().datafeed().getTradingDay();
     }
 
-    private class QdMarketHandler implements MarketHandler {
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(task, delay, unit, pool);
+    }
+
+    /*
+     * The timer thread only hands the task to the executor, so a slow task
+     * can't hold up the other timeouts.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit, Executor executor) {
+        if (task == null || unit == null) {
+            throw new NullPointerException("Schedule null task or unit.");
+        }
+        var x = new Timeout[1];
+        x[0] = QdTimer.instance().schedule(() -> {
+            var k = x[0];
+            if (k != null) {
+                tm.remove(k);
+            }
+            executor.execute(task);
+        }, delay, unit);
+        tm.add(x[0]);
+        if (x[0].isExpired()) {
+            tm.remove(x[0]);
+        }
+        return x[0];
+    }
+
+    /**
+     * Subscribers and indicators kept as copy-on-write arrays indexed by
+     * instrument id. The dispatch threads read the current arrays without
+     * locking, while the rare subscription changes copy and republish them.
+     */
+    private class QdMarketHandler implements Consumer<QdEvent> {
 
-        private final Map<String, Set<MarketHandler>> sub;
+        private final QdInstruments reg;
+        private volatile MarketHandler[][] sub;
+        private volatile Indicator[][] ind;
 
         QdMarketHandler() {
-            sub = new ConcurrentHashMap<>();
+            reg = QdInstruments.instance();
+            sub = new MarketHandler[0][];
+            ind = new Indicator[0][];
         }
 
-        void subscribe(String instrumentId, MarketHandler handler) {
-            var s = sub.computeIfAbsent(instrumentId, k -> new ConcurrentSkipListSet<>());
-            s.add(handler);
+        synchronized void subscribe(String instrumentId, MarketHandler handler) {
+            var i = reg.id(instrumentId);
+            var s = Arrays.copyOf(sub, Math.max(sub.length, i + 1));
+            s[i] = s[i] == null ? new MarketHandler[]{handler} : QdArrays.add(s[i], handler);
+            sub = s;
         }
 
-        void remove(String instrumentId) {
-            sub.remove(instrumentId);
+        synchronized void subscribe(String instrumentId, Indicator indicator) {
+            var i = reg.id(instrumentId);
+            var s = Arrays.copyOf(ind, Math.max(ind.length, i + 1));
+            s[i] = s[i] == null ? new Indicator[]{indicator} : QdArrays.add(s[i], indicator);
+            ind = s;
         }
 
-        void remove(String instrumentId, MarketHandler handler) {
-            var s = sub.get(instrumentId);
-            if (s != null) {
-                s.remove(handler);
-                if (s.isEmpty()) {
-                    sub.remove(instrumentId);
-                }
+        synchronized void remove(String instrumentId) {
+            var i = reg.find(instrumentId);
+            if (i < 0) {
+                return;
+            }
+            if (i < sub.length) {
+                var s = sub.clone();
+                s[i] = null;
+                sub = s;
+            }
+            if (i < ind.length) {
+                var s = ind.clone();
+                s[i] = null;
+                ind = s;
+            }
+        }
+
+        synchronized void remove(String instrumentId, MarketHandler handler) {
+            var i = reg.find(instrumentId);
+            if (i < 0 || i >= sub.length || sub[i] == null) {
+                return;
+            }
+            var n = QdArrays.remove(sub[i], handler);
+            var s = sub.clone();
+            s[i] = n.length == 0 ? null : n;
+            sub = s;
+        }
+
+        synchronized void remove(String instrumentId, Indicator indicator) {
+            var i = reg.find(instrumentId);
+            if (i < 0 || i >= ind.length || ind[i] == null) {
+                return;
             }
+            var n = QdArrays.remove(ind[i], indicator);
+            var s = ind.clone();
+            s[i] = n.length == 0 ? null : n;
+            ind = s;
         }
 
         boolean has(String instrumentId) {
-            return sub.containsKey(instrumentId);
+            var i = reg.find(instrumentId);
+            var s = sub;
+            var d = ind;
+            return i >= 0 && ((i < s.length && s[i] != null) || (i < d.length && d[i] != null));
         }
 
         @Override
-        public void onTick(Tick tick) {
-            final QdMarketHandler self = this;
-            final var s = sub.get(tick.getInstrumentId());
-            if (s != null) {
-                s.stream().parallel().forEach(h -> {
-                    try {
-                        h.onTick(tick);
-                    } catch (Throwable throwable) {
-                        LOG.write(throwable, self);
+        public void accept(QdEvent e) {
+            switch (e.type) {
+                case TICK:
+                    if (jr != null) {
+                        jr.append(e.tick);
+                    }
+                    QdRisk.instance().onTick(e.instrument, e.tick);
+                    agg.onTick(e.instrument, e.tick);
+                    update(e.instrument, e.tick);
+                    onTick(e.instrument, e.tick);
+                    break;
+                case CANDLE:
+                    if (jr != null) {
+                        jr.append(e.candle);
                     }
-                });
+                    onCandle(e.instrument, e.candle);
+                    break;
+                default:
+                    onError(e.code, e.message);
+                    break;
             }
         }
 
-        @Override
-        public void onCandle(Candle candle) {
-            final QdMarketHandler self = this;
-            final var s = sub.get(candle.getInstrumentId());
-            if (s != null) {
-                s.stream().parallel().forEach(h -> {
+        private MarketHandler[] handlers(int instrument) {
+            var s = sub;
+            if (instrument < 0 || instrument >= s.length) {
+                return null;
+            }
+            return s[instrument];
+        }
+
+        private void update(int instrument, Tick tick) {
+            var d = ind;
+            if (instrument < 0 || instrument >= d.length || d[instrument] == null) {
+                return;
+            }
+            for (var x : d[instrument]) {
+                try {
+                    x.onTick(tick);
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+        }
+
+        private void onTick(int instrument, Tick tick) {
+            var a = handlers(instrument);
+            if (a == null) {
+                return;
+            }
+            for (var h : a) {
+                try {
+                    h.onTick(tick);
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+        }
+
+        private void onCandle(int instrument, Candle candle) {
+            var a = handlers(instrument);
+            if (a == null) {
+                return;
+            }
+            for (var h : a) {
+                try {
+                    h.onCandle(candle);
+                } catch (Throwable throwable) {
+                    LOG.write(throwable, this);
+                }
+            }
+        }
+
+        private void onError(int code, String message) {
+            for (var a : sub) {
+                if (a == null) {
+                    continue;
+                }
+                for (var h : a) {
                     try {
-                        h.onCandle(candle);
+                        h.onError(code, message);
                     } catch (Throwable throwable) {
-                        LOG.write(throwable, self);
+                        LOG.write(throwable, this);
                     }
-                });
+                }
             }
         }
-
-        @Override
-        public void onError(int code, String message) {
-            final QdMarketHandler self = this;
-            sub.values().stream().parallel()
-               .forEach(s -> s.stream().parallel()
-                              .forEach(h -> {
-                                  try {
-                                      h.onError(code, message);
-                                  } catch (Throwable throwable) {
-                                      LOG.write(throwable, self);
-                                  }
-                              }));
-        }
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.indicator.IndicatorView;
+
+class QdIndicatorView implements IndicatorView {
+
+    private final Indicator i;
+
+    QdIndicatorView(Indicator indicator) {
+        i = indicator;
+    }
+
+    @Override
+    public double value() {
+        return i.value();
+    }
+
+    @Override
+    public double value(int index) {
+        return i.value(index);
+    }
+
+    @Override
+    public boolean ready() {
+        return i.ready();
+    }
+
+    @Override
+    public String toString() {
+        return i.key();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns instrument ids into dense int ids, so the dispatch path indexes
+ * arrays instead of hashing strings. Ids start
+ * from zero and are never reused.
+ */
+class QdInstruments {
+
+    private static QdInstruments r;
+
+    private final Map<String, Integer> i;
+    private volatile String[] names;
+
+    private QdInstruments() {
+        i = new ConcurrentHashMap<>();
+        names = new String[0];
+    }
+
+    static synchronized QdInstruments instance() {
+        if (r == null) {
+            r = new QdInstruments();
+        }
+        return r;
+    }
+
+    int id(String instrumentId) {
+        var x = i.get(instrumentId);
+        if (x != null) {
+            return x;
+        }
+        synchronized (i) {
+            x = i.get(instrumentId);
+            if (x == null) {
+                x = i.size();
+                var n = Arrays.copyOf(names, x + 1);
+                n[x] = instrumentId;
+                names = n;
+                i.put(instrumentId, x);
+            }
+            return x;
+        }
+    }
+
+    int find(String instrumentId) {
+        if (instrumentId == null) {
+            return -1;
+        }
+        var x = i.get(instrumentId);
+        return x == null ? -1 : x;
+    }
+
+    String instrumentId(int id) {
+        return names[id];
+    }
+
+    int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.tools.LOG;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-consumer queue of callbacks for one quanter. The callbacks run one
+ * at a time on a shared pool, so the quanter never sees two of its callbacks
+ * at once. The mailbox gives its pool thread back after a batch, so a busy
+ * quanter can't keep the others waiting.
+ * <p>
+ * Nothing that queues into a mailbox ever waits, since the producer is a
+ * dispatch thread shared by many quanters. Ticks are offered and dropped
+ * when the mailbox holds its capacity, the drops are counted. Everything
+ * else is always queued, order states, trades and lifecycle callbacks can't
+ * be lost, and there are few of them.
+ */
+class QdMailbox implements Executor, Runnable {
+
+    static final int CAPACITY = 1 << 12;
+
+    private static final int BATCH = 64;
+    private static final long AWAIT_MILLIS = 10_000L;
+
+    private final Queue<Runnable> q;
+    private final AtomicInteger size;
+    private final int cap;
+    private final Executor x;
+    private final AtomicBoolean s;
+    private final AtomicLong dropped;
+
+    QdMailbox(int capacity, Executor pool) {
+        q = new ConcurrentLinkedQueue<>();
+        size = new AtomicInteger(0);
+        cap = capacity;
+        x = pool;
+        s = new AtomicBoolean(false);
+        dropped = new AtomicLong(0);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        size.incrementAndGet();
+        q.add(command);
+        schedule();
+    }
+
+    /*
+     * Queues the tick callback unless the mailbox is full, the quanter then
+     * misses the tick as a conflating subscriber would.
+     */
+    void offer(Runnable command) {
+        if (size.get() >= cap) {
+            dropped.incrementAndGet();
+            return;
+        }
+        execute(command);
+    }
+
+    @Override
+    public void run() {
+        int n = 0;
+        Runnable r;
+        while (n < BATCH && (r = q.poll()) != null) {
+            size.decrementAndGet();
+            try {
+                r.run();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+            ++n;
+        }
+        s.set(false);
+        if (!q.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (s.compareAndSet(false, true)) {
+            x.execute(this);
+        }
+    }
+
+    /*
+     * Returns once the callbacks queued before the call have run in every
+     * mailbox, or a quanter keeps its mailbox busy for too long.
+     */
+    static boolean await(Collection<QdMailbox> mailboxes) {
+        var l = new CountDownLatch(mailboxes.size());
+        for (var m : mailboxes) {
+            m.execute(l::countDown);
+        }
+        try {
+            if (l.await(AWAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            LOG.write("Mailboxes don't drain, " + l.getCount() + " still busy.", QdMailbox.class);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    long depth() {
+        return size.get();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Candle;
+import org.quantdirect.Conflation;
+import org.quantdirect.Feed;
+import org.quantdirect.MarketHandler;
+import org.quantdirect.Tick;
+import org.quantdirect.Timeout;
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.indicator.IndicatorView;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The feed one quanter sees in mailbox execution. Its handlers are wrapped so
+ * that every callback is queued into the quanter's {@link QdMailbox} instead
+ * of running on the dispatch thread. Pooled ticks are copied before they are
+ * queued.
+ */
+class QdMailboxFeed implements Feed {
+
+    private final QdFeed f;
+    private final QdMailbox m;
+    private final Map<MarketHandler, MarketHandler> w;
+    private final Map<MarketHandler, MarketHandler> cf;
+    private final boolean pooled;
+
+    QdMailboxFeed(QdFeed feed, QdMailbox mailbox, boolean pooled) {
+        f = feed;
+        m = mailbox;
+        this.pooled = pooled;
+        w = new ConcurrentHashMap<>();
+        cf = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void subscribe(String instrumentId, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        f.subscribe(instrumentId, w.computeIfAbsent(handler, QdMailboxHandler::new));
+    }
+
+    @Override
+    public void subscribe(String instrumentId, MarketHandler handler, Conflation conflation) throws IOException {
+        if (conflation != Conflation.LATEST) {
+            subscribe(instrumentId, handler);
+            return;
+        }
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        f.subscribe(instrumentId, cf.computeIfAbsent(handler, k -> f.conflate(k, m)));
+    }
+
+    @Override
+    public void subscribe(String instrumentId, int minutes, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        f.subscribe(instrumentId, minutes, w.computeIfAbsent(handler, QdMailboxHandler::new));
+    }
+
+    @Override
+    public void subscribe(String instrumentId, Indicator indicator) throws IOException {
+        f.subscribe(instrumentId, indicator);
+    }
+
+    @Override
+    public void subscribe(String instrumentId, int minutes, Indicator indicator) throws IOException {
+        f.subscribe(instrumentId, minutes, indicator);
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId, Indicator indicator) throws IOException {
+        f.unsubscribe(instrumentId, indicator);
+    }
+
+    @Override
+    public IndicatorView share(String instrumentId, Indicator indicator) throws IOException {
+        return f.share(instrumentId, indicator);
+    }
+
+    @Override
+    public IndicatorView share(String instrumentId, int minutes, Indicator indicator) throws IOException {
+        return f.share(instrumentId, minutes, indicator);
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId) throws IOException {
+        f.unsubscribe(instrumentId);
+    }
+
+    @Override
+    public void unsubscribe(String instrumentId, MarketHandler handler) throws IOException {
+        if (instrumentId == null || handler == null) {
+            return;
+        }
+        var x = w.get(handler);
+        if (x != null) {
+            f.unsubscribe(instrumentId, x);
+        }
+        var c = cf.get(handler);
+        if (c != null) {
+            f.unsubscribe(instrumentId, c);
+        }
+    }
+
+    @Override
+    public Date getTradingDay() {
+        return f.getTradingDay();
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return f.schedule(task, delay, unit, m);
+    }
+
+    private class QdMailboxHandler implements MarketHandler {
+
+        private final MarketHandler h;
+
+        QdMailboxHandler(MarketHandler handler) {
+            h = handler;
+        }
+
+        @Override
+        public void onTick(Tick tick) {
+            final Tick t = pooled ? tick.copy() : tick;
+            m.offer(() -> h.onTick(t));
+        }
+
+        @Override
+        public void onCandle(Candle candle) {
+            m.execute(() -> h.onCandle(candle));
+        }
+
+        @Override
+        public void onError(int code, String message) {
+            m.execute(() -> h.onError(code, message));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Basket;
+import org.quantdirect.Order;
+import org.quantdirect.OrderHandler;
+import org.quantdirect.Trade;
+import org.quantdirect.Transaction;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The transaction one quanter sees in mailbox execution. Order callbacks of
+ * asynchronous trades and the completion of their futures are queued into the
+ * quanter's {@link QdMailbox}, so they never run beside its other callbacks.
+ * A callback must therefore not block on such a future, it can't complete
+ * until the callback returns.
+ */
+class QdMailboxTransaction implements Transaction {
+
+    private final Transaction t;
+    private final QdMailbox m;
+
+    QdMailboxTransaction(Transaction transaction, QdMailbox mailbox) {
+        t = transaction;
+        m = mailbox;
+    }
+
+    @Override
+    public void trade(Order order, int timeout, TimeUnit unit) throws TimeoutException, IOException {
+        t.trade(order, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<Order> tradeAsync(Order order, int timeout, TimeUnit unit) {
+        return tradeAsync(order, null, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<Order> tradeAsync(Order order, OrderHandler handler, int timeout, TimeUnit unit) {
+        var r = new CompletableFuture<Order>();
+        t.tradeAsync(order, handler == null ? null : new QdMailboxOrderHandler(handler), timeout, unit)
+                .whenComplete((o, x) -> m.execute(() -> {
+                    if (x != null) {
+                        r.completeExceptionally(x);
+                    } else {
+                        r.complete(o);
+                    }
+                }));
+        return r;
+    }
+
+    @Override
+    public Basket tradeBasket(Collection<Order> orders, OrderHandler handler, int timeout, TimeUnit unit) {
+        return new QdMailboxBasket(t.tradeBasket(orders,
+                handler == null ? null : new QdMailboxOrderHandler(handler), timeout, unit));
+    }
+
+    @Override
+    public Date getTradingDay() {
+        return t.getTradingDay();
+    }
+
+    private class QdMailboxOrderHandler implements OrderHandler {
+
+        private final OrderHandler h;
+
+        QdMailboxOrderHandler(OrderHandler handler) {
+            h = handler;
+        }
+
+        @Override
+        public void onOrder(Order order) {
+            m.execute(() -> h.onOrder(order));
+        }
+
+        @Override
+        public void onTrade(Trade trade) {
+            m.execute(() -> h.onTrade(trade));
+        }
+
+        @Override
+        public void onError(int code, String message) {
+            m.execute(() -> h.onError(code, message));
+        }
+    }
+
+    private class QdMailboxBasket implements Basket {
+
+        private final Basket b;
+        private final CompletableFuture<List<Order>> f;
+
+        QdMailboxBasket(Basket basket) {
+            b = basket;
+            f = new CompletableFuture<>();
+            b.getFuture().whenComplete((o, x) -> m.execute(() -> {
+                if (x != null) {
+                    f.completeExceptionally(x);
+                } else {
+                    f.complete(o);
+                }
+            }));
+        }
+
+        @Override
+        public List<Order> getOrders() {
+            return b.getOrders();
+        }
+
+        @Override
+        public long getQuantity() {
+            return b.getQuantity();
+        }
+
+        @Override
+        public long getTradedQuantity() {
+            return b.getTradedQuantity();
+        }
+
+        @Override
+        public boolean isDone() {
+            return b.isDone();
+        }
+
+        @Override
+        public CompletableFuture<List<Order>> getFuture() {
+            return f;
+        }
+    }
+}
@@ -51,9 +51,13 @@ class QdMaster implements Master {
         return l;
     }
 
+    /*
+     * Position queries are answered by QdPositions. The closed contracts are
+     * only kept by the database, so getContracts still reads them there.
+     */
     @Override
     public Collection<ContractName> getContractNames() {
-        return Persistence.instance().getContractNames();
+        return QdPositions.instance().getContractNames();
     }
 
     @Override
@@ -61,14 +65,19 @@ class QdMaster implements Master {
         return Persistence.instance().getContracts(instrumentId, exchangeId, direction);
     }
 
+    @Override
+    public Collection<Contract> getOpenContracts(String instrumentId, String exchangeId, Direction direction) {
+        return QdPositions.instance().getOpenContracts(instrumentId, exchangeId, direction);
+    }
+
     @Override
     public long countOpenContracts(String instrumentId, String exchangeId, Direction direction, LocalDateTime before) {
-        return Persistence.instance().countOpenContractsBefore(instrumentId, exchangeId, direction, before);
+        return QdPositions.instance().countOpenContracts(instrumentId, exchangeId, direction, before);
     }
 
     @Override
     public long countContracts(String instrumentId, String exchangeId, Direction direction, LocalDateTime before) {
-        return Persistence.instance().countContractsBefore(instrumentId, exchangeId, direction, before);
+        return QdPositions.instance().countContracts(instrumentId, exchangeId, direction, before);
     }
 
     @Override
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import java.io.File;
+
+/**
+ * Settings collected by {@link QdDirector} and handed to the stages it starts.
+ */
+class QdOptions {
+
+    Director.WaitStrategy wait;
+    int ring;
+    int threads;
+    Director.Execution exec;
+    boolean pooled;
+    File journal;
+
+    QdOptions() {
+        wait = Director.WaitStrategy.PARK;
+        ring = 1 << 16;
+        threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        exec = Director.Execution.SHARED;
+        pooled = false;
+        journal = null;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Contract;
+import org.quantdirect.ContractName;
+import org.quantdirect.Direction;
+import org.quantdirect.Trade;
+import org.quantdirect.persistence.Lot;
+import org.quantdirect.persistence.Persistence;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.TOOLS;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Contracts held per instrument, exchange and direction, so the position
+ * queries of {@link QdMaster} are answered from memory. It is filled from
+ * the database once when the director starts and then follows the trades
+ * the platform stores, the database stays the durable record only.
+ * <p>
+ * A book keeps its open lots in FIFO order and, per trading day, the
+ * number of contracts opened and still open. The counts before a time sum
+ * the days before it, which are a handful, so they cost about the same
+ * whatever the position. Closed contracts are only counted, not kept.
+ * <p>
+ * A simulation keeps its own instance, the platform uses {@link #instance()}.
+ */
+public class QdPositions {
+
+    private static QdPositions p;
+
+    private final Map<ContractName, Book[]> books;
+
+    public QdPositions() {
+        books = new ConcurrentHashMap<>();
+    }
+
+    static synchronized QdPositions instance() {
+        if (p == null) {
+            p = new QdPositions();
+        }
+        return p;
+    }
+
+    void warm() {
+        try {
+            var s = Persistence.instance();
+            books.clear();
+            for (var n : s.getContractNames()) {
+                for (var d : Direction.values()) {
+                    var b = book(n.instrumentId(), n.exchangeId(), d);
+                    for (var l : s.getLots(n.instrumentId(), n.exchangeId(), d)) {
+                        b.load(l);
+                    }
+                }
+            }
+        } catch (Throwable throwable) {
+            LOG.write(throwable, this);
+        }
+    }
+
+    public void open(Lot lot) {
+        var c = lot.getContract();
+        book(c.getInstrumentId(), c.getExchangeId(), c.getDirection()).open(lot);
+    }
+
+    void close(Trade trade) {
+        close(trade, null);
+    }
+
+    /**
+     * A close trade closes the oldest contracts of the opposite direction.
+     * Every lot it closes from is handed to {@code closed} as the database
+     * stores it, a whole lot keeps its id and a part closed from a larger lot
+     * gets a new one.
+     */
+    public void close(Trade trade, Consumer<Lot> closed) {
+        var d = trade.getDirection() == Direction.BUY ? Direction.SELL : Direction.BUY;
+        book(trade.getInstrumentId(), trade.getExchangeId(), d).close(trade.getQuantity(), trade.getPrice(),
+                trade.getUpdateTime(), closed);
+    }
+
+    public Collection<ContractName> getContractNames() {
+        return new HashSet<>(books.keySet());
+    }
+
+    public Collection<Contract> getOpenContracts(String instrumentId, String exchangeId, Direction direction) {
+        var b = find(instrumentId, exchangeId, direction);
+        return b == null ? new ArrayList<>() : b.contracts();
+    }
+
+    public long countOpenContracts(String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        var b = find(instrumentId, exchangeId, direction);
+        return b == null ? 0 : b.count(before, true);
+    }
+
+    public long countContracts(String instrumentId, String exchangeId, Direction direction,
+            LocalDateTime before) {
+        var b = find(instrumentId, exchangeId, direction);
+        return b == null ? 0 : b.count(before, false);
+    }
+
+    public long getPosition(String instrumentId, String exchangeId, Direction direction) {
+        var b = find(instrumentId, exchangeId, direction);
+        return b == null ? 0 : b.size();
+    }
+
+    /**
+     * Sum of the open prices of the contracts still held.
+     */
+    public double getOpenCost(String instrumentId, String exchangeId, Direction direction) {
+        var b = find(instrumentId, exchangeId, direction);
+        return b == null ? 0 : b.cost();
+    }
+
+    private Book find(String instrumentId, String exchangeId, Direction direction) {
+        if (direction == null) {
+            return null;
+        }
+        var a = books.get(ContractName.create(instrumentId, exchangeId));
+        return a == null ? null : a[direction.ordinal()];
+    }
+
+    private Book book(String instrumentId, String exchangeId, Direction direction) {
+        return books.computeIfAbsent(ContractName.create(instrumentId, exchangeId), k -> {
+            var a = new Book[Direction.values().length];
+            for (int i = 0; i < a.length; ++i) {
+                a[i] = new Book();
+            }
+            return a;
+        })[direction.ordinal()];
+    }
+
+    private static class Book {
+
+        private final ArrayDeque<Held> open;
+        private final TreeMap<LocalDate, long[]> days;
+        private long size;
+        private double cost;
+
+        Book() {
+            open = new ArrayDeque<>();
+            days = new TreeMap<>();
+        }
+
+        synchronized void load(Lot lot) {
+            var x = lot.getContract();
+            var c = day(x.getTradingDay());
+            c[1] += lot.getQuantity();
+            if (x.getCloseTime() == null) {
+                c[0] += lot.getQuantity();
+                open.addLast(new Held(lot, lot.getQuantity()));
+                size += lot.getQuantity();
+                cost += x.getOpenPrice() * lot.getQuantity();
+            }
+        }
+
+        synchronized void open(Lot lot) {
+            var x = lot.getContract();
+            var c = day(x.getTradingDay());
+            c[0] += lot.getQuantity();
+            c[1] += lot.getQuantity();
+            open.addLast(new Held(new Lot(copy(x), lot.getQuantity()), lot.getQuantity()));
+            size += lot.getQuantity();
+            cost += x.getOpenPrice() * lot.getQuantity();
+        }
+
+        /*
+         * Costs one step per lot it touches, a lot closed in part stays at
+         * the head with the rest. An emptied book starts its cost over, so
+         * rounding doesn't pile up over a long run.
+         */
+        synchronized void close(long quantity, double price, LocalDateTime time, Consumer<Lot> closed) {
+            while (quantity > 0 && !open.isEmpty()) {
+                var x = open.peekFirst();
+                var c = x.l.getContract();
+                var n = Math.min(quantity, x.n);
+                x.n -= n;
+                quantity -= n;
+                size -= n;
+                cost -= c.getOpenPrice() * n;
+                day(c.getTradingDay())[0] -= n;
+                if (x.n == 0) {
+                    open.pollFirst();
+                }
+                if (closed != null) {
+                    var k = copy(c);
+                    k.setClosePrice(price);
+                    k.setCloseTime(time);
+                    if (x.n > 0) {
+                        k.setContractId(TOOLS.nextId());
+                    }
+                    closed.accept(x.n == 0 && x.l.isUnit() ? Lot.unit(k) : new Lot(k, n));
+                }
+            }
+            if (size == 0) {
+                cost = 0;
+            }
+        }
+
+        synchronized double cost() {
+            return cost;
+        }
+
+        synchronized long count(LocalDateTime before, boolean openOnly) {
+            long n = 0;
+            for (var c : days.headMap(limit(before), false).values()) {
+                n += openOnly ? c[0] : c[1];
+            }
+            return n;
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        /*
+         * Units are named as the database names them, see Lot.units.
+         */
+        synchronized Collection<Contract> contracts() {
+            var r = new ArrayList<Contract>((int) Math.min(size, Integer.MAX_VALUE));
+            for (var x : open) {
+                r.addAll(x.l.units(x.n));
+            }
+            return r;
+        }
+
+        /*
+         * The database compares the start of a contract's trading day with
+         * the time, so a day counts when its midnight is before it.
+         */
+        private static LocalDate limit(LocalDateTime before) {
+            if (before == null) {
+                return LocalDate.MAX;
+            }
+            var d = before.toLocalDate();
+            return before.toLocalTime().equals(LocalTime.MIDNIGHT) ? d : d.plusDays(1);
+        }
+
+        private long[] day(LocalDate day) {
+            return days.computeIfAbsent(day == null ? LocalDate.MIN : day, k -> new long[2]);
+        }
+
+        private static Contract copy(Contract contract) {
+            var c = new Contract();
+            c.setContractId(contract.getContractId());
+            c.setTradeId(contract.getTradeId());
+            c.setInstrumentId(contract.getInstrumentId());
+            c.setExchangeId(contract.getExchangeId());
+            c.setDirection(contract.getDirection());
+            c.setOpenPrice(contract.getOpenPrice());
+            c.setClosePrice(contract.getClosePrice());
+            c.setTradingDay(contract.getTradingDay());
+            c.setCloseTime(contract.getCloseTime());
+            return c;
+        }
+    }
+
+    private static class Held {
+
+        private final Lot l;
+        private long n;
+
+        Held(Lot lot, long quantity) {
+            l = lot;
+            n = quantity;
+        }
+    }
+}
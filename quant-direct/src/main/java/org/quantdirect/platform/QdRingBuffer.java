@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Pre-allocated ring of {@link QdEvent} slots with one producer and one consumer.
+ * <p>
+ * The producer claims a slot, fills it in place and publishes it, so nothing is
+ * allocated per event. When the ring is full the producer waits with the
+ * configured strategy and the stall is counted. Once the ring is closed
+ * nothing drains it any more, so a claim gets no slot and the event is
+ * dropped.
+ */
+class QdRingBuffer {
+
+    private static final long PARK_NANOS = 1_000L;
+
+    private final QdEvent[] e;
+    private final int mask;
+    private final Director.WaitStrategy w;
+    private final AtomicLong cursor;
+    private final AtomicLong gate;
+    private final AtomicLong stalls;
+    private volatile boolean closed;
+    private long next;
+    private long cachedGate;
+
+    QdRingBuffer(int size, Director.WaitStrategy strategy) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of 2: " + size + ".");
+        }
+        e = new QdEvent[size];
+        for (int i = 0; i < size; ++i) {
+            e[i] = new QdEvent();
+        }
+        mask = size - 1;
+        w = strategy;
+        cursor = new AtomicLong(-1);
+        gate = new AtomicLong(-1);
+        stalls = new AtomicLong(0);
+        next = -1;
+        cachedGate = -1;
+    }
+
+    /*
+     * Returns null when the ring is closed.
+     */
+    QdEvent claim() {
+        if (closed) {
+            return null;
+        }
+        var n = next + 1;
+        var wrap = n - e.length;
+        if (wrap > cachedGate) {
+            cachedGate = gate.get();
+            if (wrap > cachedGate) {
+                stalls.incrementAndGet();
+                do {
+                    if (closed) {
+                        return null;
+                    }
+                    idle();
+                    cachedGate = gate.get();
+                } while (wrap > cachedGate);
+            }
+        }
+        next = n;
+        return e[(int) n & mask];
+    }
+
+    void publish() {
+        cursor.lazySet(next);
+    }
+
+    int drain(Consumer<QdEvent> handler) {
+        var a = cursor.get();
+        var s = gate.get();
+        if (a <= s) {
+            return 0;
+        }
+        for (long i = s + 1; i <= a; ++i) {
+            var x = e[(int) i & mask];
+            try {
+                handler.accept(x);
+            } finally {
+                x.clear();
+                gate.lazySet(i);
+            }
+        }
+        return (int) (a - s);
+    }
+
+    void idle() {
+        switch (w) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+        }
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    long published() {
+        return cursor.get();
+    }
+
+    long dispatched() {
+        return gate.get();
+    }
+
+    int capacity() {
+        return e.length;
+    }
+
+    long occupancy() {
+        return cursor.get() - gate.get();
+    }
+
+    long stalls() {
+        return stalls.get();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Direction;
+import org.quantdirect.Offset;
+import org.quantdirect.Order;
+import org.quantdirect.Tick;
+import org.quantdirect.Trade;
+import org.quantdirect.tools.CLOCK;
+import org.quantdirect.tools.METRICS;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-trade checks on the order path, kept in memory so that a check never
+ * waits for the database. An order is rejected when it is larger than the
+ * max order size, when its price is outside the limit prices of the
+ * instrument's last tick, when it comes faster than the order rate allows,
+ * or when it opens more than the max position.
+ * <p>
+ * Every instrument has a slot indexed by its {@link QdInstruments} id, an
+ * instrument traded on several exchanges has one position summed over them.
+ * The position of a side counts the contracts held and the open orders still
+ * working, an open order reserves its quantity with a CAS on that counter
+ * and gives back what it didn't fill when it is done. Close trades reduce
+ * the side they close. The order rate is a lock-free GCRA: a single
+ * theoretical arrival time moves forward by one interval per order and an
+ * order is refused when it would have to move beyond a second's burst. The
+ * rate is checked last, so an order refused for another reason doesn't use
+ * up the rate, and a reservation is given back when the rate refuses.
+ */
+class QdRisk {
+
+    static final int CODE = 100;
+
+    private static QdRisk r;
+
+    private final QdInstruments reg;
+    private final AtomicLong tat;
+    private final LongAdder passed;
+    private final LongAdder rejected;
+    private volatile Slot[] slots;
+    private volatile long maxOrder;
+    private volatile long maxPosition;
+    private volatile long interval;
+    private volatile long tolerance;
+
+    private QdRisk() {
+        reg = QdInstruments.instance();
+        tat = new AtomicLong(0);
+        passed = new LongAdder();
+        rejected = new LongAdder();
+        slots = new Slot[0];
+        maxOrder = Long.MAX_VALUE;
+        maxPosition = Long.MAX_VALUE;
+        interval = 0;
+        tolerance = 0;
+        METRICS.register("risk.passed", passed::sum);
+        METRICS.register("risk.rejected", rejected::sum);
+    }
+
+    static synchronized QdRisk instance() {
+        if (r == null) {
+            r = new QdRisk();
+        }
+        return r;
+    }
+
+    void setMaxOrderSize(long size) {
+        maxOrder = size <= 0 ? Long.MAX_VALUE : size;
+    }
+
+    void setMaxPosition(long position) {
+        maxPosition = position < 0 ? Long.MAX_VALUE : position;
+    }
+
+    void setMaxPosition(String instrumentId, long position) {
+        slot(reg.id(instrumentId)).max = position < 0 ? -1 : position;
+    }
+
+    /*
+     * Up to a second's worth of orders may come at once, after that they are
+     * spaced by the interval.
+     */
+    void setOrderRate(int perSecond) {
+        if (perSecond <= 0) {
+            interval = 0;
+            tolerance = 0;
+        } else {
+            var n = 1_000_000_000L / perSecond;
+            tolerance = 1_000_000_000L - n;
+            interval = n;
+        }
+    }
+
+    /*
+     * Returns the reason of the rejection, or null when the order passes. An
+     * open order that passes holds its quantity until release is called.
+     */
+    String check(Order order) {
+        var x = check0(order);
+        if (x == null) {
+            passed.increment();
+        } else {
+            rejected.increment();
+        }
+        return x;
+    }
+
+    private String check0(Order order) {
+        var q = order.getQuantity();
+        if (q > maxOrder) {
+            return "Order size " + q + " over " + maxOrder + ".";
+        }
+        if (order.getInstrumentId() == null) {
+            return null;
+        }
+        var s = slot(reg.id(order.getInstrumentId()));
+        var p = order.getPrice();
+        var up = s.upper;
+        var lo = s.lower;
+        if ((up > 0 && p > up) || (lo > 0 && p < lo)) {
+            return "Price " + p + " out of limits [" + lo + ", " + up + "].";
+        }
+        var open = order.getOffset() == Offset.OPEN;
+        if (open) {
+            var max = s.max < 0 ? maxPosition : s.max;
+            if (!reserve(s.side(order.getDirection()), q, max)) {
+                return "Position over " + max + ".";
+            }
+        }
+        if (!acquireRate()) {
+            if (open) {
+                decrease(s.side(order.getDirection()), q);
+            }
+            return "Order rate over " + (1_000_000_000L / interval) + "/s.";
+        }
+        return null;
+    }
+
+    private boolean acquireRate() {
+        var n = interval;
+        if (n == 0) {
+            return true;
+        }
+        var now = CLOCK.nanos();
+        while (true) {
+            var t = tat.get();
+            var a = Math.max(t, now);
+            if (a - now > tolerance) {
+                return false;
+            }
+            if (tat.compareAndSet(t, a + n)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean reserve(AtomicLong side, long quantity, long max) {
+        while (true) {
+            var v = side.get();
+            if (v + quantity > max) {
+                return false;
+            }
+            if (side.compareAndSet(v, v + quantity)) {
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Gives back the unfilled part of an open order that passed the check.
+     */
+    void release(Order order, long unfilled) {
+        if (order.getOffset() != Offset.OPEN || order.getInstrumentId() == null || unfilled <= 0) {
+            return;
+        }
+        var s = slot(reg.id(order.getInstrumentId()));
+        decrease(s.side(order.getDirection()), unfilled);
+    }
+
+    /*
+     * Filled open quantity was already reserved, only closes move the count.
+     */
+    void onTrade(Trade trade) {
+        if (trade.getOffset() == Offset.OPEN || trade.getInstrumentId() == null) {
+            return;
+        }
+        var s = slot(reg.id(trade.getInstrumentId()));
+        var d = trade.getDirection() == Direction.BUY ? Direction.SELL : Direction.BUY;
+        decrease(s.side(d), trade.getQuantity());
+    }
+
+    /*
+     * Counts open quantity filled after its order's reservation was given
+     * back, so a fill reported late still holds its position.
+     */
+    void onLateFill(Trade trade, long quantity) {
+        if (trade.getOffset() != Offset.OPEN || trade.getInstrumentId() == null || quantity <= 0) {
+            return;
+        }
+        slot(reg.id(trade.getInstrumentId())).side(trade.getDirection()).addAndGet(quantity);
+    }
+
+    void onTick(int instrument, Tick tick) {
+        var s = slot(instrument);
+        s.upper = tick.getUpperLimitPrice();
+        s.lower = tick.getLowerLimitPrice();
+    }
+
+    /*
+     * Sets the contracts already held, for positions opened before the start,
+     * summed over the exchanges the instrument trades on.
+     */
+    void setPosition(String instrumentId, Direction direction, long position) {
+        slot(reg.id(instrumentId)).side(direction).set(Math.max(0, position));
+    }
+
+    long getPosition(String instrumentId, Direction direction) {
+        var i = reg.find(instrumentId);
+        var s = slots;
+        if (i < 0 || i >= s.length || s[i] == null) {
+            return 0;
+        }
+        return s[i].side(direction).get();
+    }
+
+    private void decrease(AtomicLong side, long quantity) {
+        side.accumulateAndGet(quantity, (v, q) -> Math.max(0, v - q));
+    }
+
+    private Slot slot(int instrument) {
+        var s = slots;
+        if (instrument < s.length && s[instrument] != null) {
+            return s[instrument];
+        }
+        return newSlot(instrument);
+    }
+
+    private synchronized Slot newSlot(int instrument) {
+        var s = slots;
+        if (instrument < s.length && s[instrument] != null) {
+            return s[instrument];
+        }
+        var n = Arrays.copyOf(s, Math.max(s.length, instrument + 1));
+        var x = new Slot();
+        n[instrument] = x;
+        slots = n;
+        return x;
+    }
+
+    private static class Slot {
+
+        private final AtomicLong buy;
+        private final AtomicLong sell;
+        private volatile double upper;
+        private volatile double lower;
+        private volatile long max;
+
+        Slot() {
+            buy = new AtomicLong(0);
+            sell = new AtomicLong(0);
+            max = -1;
+        }
+
+        AtomicLong side(Direction direction) {
+            return direction == Direction.BUY ? buy : sell;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.indicator.Indicator;
+import org.quantdirect.indicator.IndicatorView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared indicators of one feed, keyed by instrument, interval and
+ * {@link Indicator#key()}. The first indicator of a key is the one computed,
+ * every request of the key gets a read-only view of it. The indicators that
+ * requested a key are counted, by identity, and the key is dropped with the
+ * last of them.
+ * <p>
+ * Subscribing the shared indicator is left to the feed, which locks on this
+ * object around a request so that two requests of a new key subscribe once.
+ */
+public class QdShares {
+
+    private final Map<String, Share> sh;
+
+    public QdShares() {
+        sh = new HashMap<>();
+    }
+
+    /**
+     * Counts the request and returns the view of the key, or null when the
+     * key isn't shared yet and the feed has to subscribe the indicator and
+     * {@link #add} it.
+     */
+    public synchronized IndicatorView request(String instrumentId, int minutes, Indicator indicator) {
+        var x = sh.get(key(instrumentId, minutes, indicator));
+        if (x == null) {
+            return null;
+        }
+        x.holders.add(indicator);
+        return x.view;
+    }
+
+    public synchronized IndicatorView add(String instrumentId, int minutes, Indicator indicator) {
+        var x = new Share(indicator);
+        x.holders.add(indicator);
+        sh.put(key(instrumentId, minutes, indicator), x);
+        return x.view;
+    }
+
+    /**
+     * Takes one request of the indicator off the key it requested. Returns
+     * the indicator the feed has to unsubscribe: the indicator itself when it
+     * requested no share of the instrument, the shared one when this was the
+     * key's last request, or null when the key is still shared.
+     */
+    public synchronized Indicator release(String instrumentId, Indicator indicator) {
+        var it = sh.entrySet().iterator();
+        while (it.hasNext()) {
+            var e = it.next();
+            if (!e.getKey().startsWith(instrumentId + "/")) {
+                continue;
+            }
+            var x = e.getValue();
+            for (int i = 0; i < x.holders.size(); ++i) {
+                if (x.holders.get(i) == indicator) {
+                    x.holders.remove(i);
+                    if (!x.holders.isEmpty()) {
+                        return null;
+                    }
+                    it.remove();
+                    return x.indicator;
+                }
+            }
+        }
+        return indicator;
+    }
+
+    public synchronized void remove(String instrumentId) {
+        sh.keySet().removeIf(k -> k.startsWith(instrumentId + "/"));
+    }
+
+    public synchronized int size() {
+        return sh.size();
+    }
+
+    private static String key(String instrumentId, int minutes, Indicator indicator) {
+        return instrumentId + "/" + minutes + "/" + indicator.key();
+    }
+
+    private static class Share {
+
+        private final Indicator indicator;
+        private final IndicatorView view;
+        private final List<Indicator> holders;
+
+        Share(Indicator indicator) {
+            this.indicator = indicator;
+            view = new QdIndicatorView(indicator);
+            holders = new ArrayList<>(1);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.Timeout;
+import org.quantdirect.tools.CLOCK;
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer shared by the platform. Scheduling and cancelling only
+ * push the timeout onto a lock-free queue, the timer thread moves it into or
+ * out of its bucket in O(1), so hundreds of thousands of pending timeouts
+ * cost one object each.
+ * <p>
+ * Time comes from {@link CLOCK}. A bucket is only expired once its whole tick
+ * has passed, and when the clock jumps further than a turn of the wheel, as
+ * it does in a replay, every bucket is checked once instead of tick by tick.
+ * When a replay moves the clock back, the wheel moves back with it. Tasks run
+ * on the timer thread and must be short, anything that may block belongs on
+ * an executor. A task scheduled by a running task waits for the next round.
+ */
+public class QdTimer {
+
+    private static final long TICK_NANOS = 1_000_000L;
+    private static final int WHEEL = 1 << 10;
+    private static QdTimer t;
+
+    private final Bucket[] wheel;
+    private final Queue<QdTimeout> added;
+    private final Queue<QdTimeout> cancelled;
+    private final AtomicLong pending;
+    private final List<QdTimeout> due;
+    private long tick;
+    private Thread worker;
+
+    private QdTimer() {
+        wheel = new Bucket[WHEEL];
+        for (int i = 0; i < WHEEL; ++i) {
+            wheel[i] = new Bucket();
+        }
+        added = new ConcurrentLinkedQueue<>();
+        cancelled = new ConcurrentLinkedQueue<>();
+        pending = new AtomicLong(0);
+        due = new ArrayList<>();
+        METRICS.register("timer.pending", pending::get);
+    }
+
+    public static synchronized QdTimer instance() {
+        if (t == null) {
+            t = new QdTimer();
+        }
+        return t;
+    }
+
+    public QdTimeout schedule(Runnable task, long delay, TimeUnit unit) {
+        var x = new QdTimeout(task, CLOCK.nanos() + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        added.add(x);
+        start();
+        return x;
+    }
+
+    private synchronized void start() {
+        if (worker == null) {
+            tick = Math.floorDiv(CLOCK.nanos(), TICK_NANOS) - 1;
+            worker = new Thread(this::run, "QD-TIMER");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                advance();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+            LockSupport.parkNanos(TICK_NANOS);
+        }
+    }
+
+    /*
+     * Ticks up to but excluding the current one are complete, every deadline
+     * falling into them has passed.
+     */
+    private void advance() {
+        var now = CLOCK.nanos();
+        var last = Math.floorDiv(now, TICK_NANOS) - 1;
+        if (last < tick) {
+            tick = last;
+        }
+        unlinkCancelled();
+        transfer(now);
+        if (last - tick >= WHEEL) {
+            for (var b : wheel) {
+                b.expire(now);
+            }
+        } else {
+            for (var k = tick + 1; k <= last; ++k) {
+                wheel[(int) (k & (WHEEL - 1))].expire(now);
+            }
+        }
+        if (last > tick) {
+            tick = last;
+        }
+    }
+
+    /*
+     * Due timeouts only run once the queue is drained, a task that schedules
+     * itself again can't keep the drain going. The others go at least one
+     * tick ahead, into a bucket that is still to come.
+     */
+    private void transfer(long now) {
+        QdTimeout x;
+        while ((x = added.poll()) != null) {
+            if (x.state.get() != QdTimeout.PENDING) {
+                continue;
+            }
+            if (x.deadline <= now) {
+                due.add(x);
+                continue;
+            }
+            var k = Math.max(Math.floorDiv(x.deadline, TICK_NANOS), tick + 1);
+            wheel[(int) (k & (WHEEL - 1))].add(x);
+        }
+        for (var d : due) {
+            d.expire();
+        }
+        due.clear();
+    }
+
+    private void unlinkCancelled() {
+        QdTimeout x;
+        while ((x = cancelled.poll()) != null) {
+            if (x.bucket != null) {
+                x.bucket.remove(x);
+            }
+        }
+    }
+
+    private static class Bucket {
+
+        private QdTimeout head;
+        private QdTimeout tail;
+
+        void add(QdTimeout x) {
+            x.bucket = this;
+            x.prev = tail;
+            x.next = null;
+            if (tail == null) {
+                head = x;
+            } else {
+                tail.next = x;
+            }
+            tail = x;
+        }
+
+        void remove(QdTimeout x) {
+            if (x.prev == null) {
+                head = x.next;
+            } else {
+                x.prev.next = x.next;
+            }
+            if (x.next == null) {
+                tail = x.prev;
+            } else {
+                x.next.prev = x.prev;
+            }
+            x.prev = null;
+            x.next = null;
+            x.bucket = null;
+        }
+
+        /*
+         * Timeouts of later turns share the bucket and stay for their turn.
+         */
+        void expire(long now) {
+            var x = head;
+            while (x != null) {
+                var n = x.next;
+                if (x.deadline <= now) {
+                    remove(x);
+                    x.expire();
+                }
+                x = n;
+            }
+        }
+    }
+
+    public class QdTimeout implements Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        private QdTimeout prev;
+        private QdTimeout next;
+        private Bucket bucket;
+
+        QdTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(PENDING);
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+        }
+    }
+}
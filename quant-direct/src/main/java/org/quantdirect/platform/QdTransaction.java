@@ -20,26 +20,158 @@ package org.quantdirect.platform;
 import org.quantdirect.*;
 import org.quantdirect.loader.Loader;
 import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+import org.quantdirect.persistence.Lot;
 import org.quantdirect.persistence.Persistence;
 import org.quantdirect.tools.TOOLS;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.concurrent.CountDownLatch;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Orders go to the gateway without blocking, the returned future completes
+ * when the order leaves ACCEPTED. An order still working when its timeout
+ * runs out is deleted by the platform's timer, and if it isn't done one more
+ * timeout after the delete, the future fails anyway. Both timeouts live on the
+ * platform's {@link QdTimer}. The blocking
+ * {@link #trade(Order, int, TimeUnit)} just waits for that future.
+ * <p>
+ * Legs of a basket are traded the same way, they only share one batched
+ * write of their first states and a {@link QdBasket} summing up their fills.
+ * <p>
+ * Every order passes the {@link QdRisk} checks first, a failing order is
+ * REJECTED without reaching the gateway.
+ */
 class QdTransaction implements Transaction {
+
+    private static final AtomicInteger blocked = new AtomicInteger(0);
+
+    static {
+        METRICS.register("transaction.blocked", blocked::get);
+    }
+
     @Override
     public void trade(Order order, int timeout, TimeUnit unit) throws TimeoutException, IOException {
-        var h = new QdOrderHandler(order);
-        Loader.instance().gateway().create(order, h);
-        if (!h.wait(timeout, unit)) {
-            Loader.instance().gateway().delete(order);
-            if (!h.wait(timeout, unit)) {
-                throw new TimeoutException("Delete order timeout.");
+        blocked.incrementAndGet();
+        try {
+            send(order, null, timeout, unit, true).get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Trade interrupted.", exception);
+        } catch (ExecutionException exception) {
+            var c = exception.getCause();
+            if (c instanceof TimeoutException) {
+                throw (TimeoutException) c;
+            }
+            if (c instanceof IOException) {
+                throw (IOException) c;
+            }
+            throw new IOException(c);
+        } finally {
+            blocked.decrementAndGet();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Order> tradeAsync(Order order, int timeout, TimeUnit unit) {
+        return tradeAsync(order, null, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<Order> tradeAsync(Order order, OrderHandler handler, int timeout, TimeUnit unit) {
+        return send(order, handler, timeout, unit, false);
+    }
+
+    /*
+     * The blocking trade keeps the old meaning of a timeout of zero or less,
+     * it expires at once instead of never.
+     */
+    private CompletableFuture<Order> send(Order order, OrderHandler handler, int timeout, TimeUnit unit,
+            boolean expireNow) {
+        var h = new QdOrderHandler(order, handler, null, 0);
+        if (!h.check()) {
+            return h.f;
+        }
+        try {
+            Loader.instance().gateway().create(order, h);
+        } catch (Throwable throwable) {
+            h.refuse(throwable);
+            return h.f;
+        }
+        if (timeout > 0 || expireNow) {
+            h.timeout(Math.max(timeout, 0), unit);
+        }
+        return h.f;
+    }
+
+    @Override
+    public Basket tradeBasket(Collection<Order> orders, OrderHandler handler, int timeout, TimeUnit unit) {
+        var b = new QdBasket(orders);
+        var o = b.getOrders();
+        var hs = new ArrayList<QdOrderHandler>(o.size());
+        var fs = new ArrayList<CompletableFuture<Order>>(o.size());
+        for (int i = 0; i < o.size(); ++i) {
+            var h = new QdOrderHandler(o.get(i), handler, b, i);
+            hs.add(h);
+            fs.add(h.f);
+        }
+        b.watch(fs);
+        var ok = new ArrayList<Order>(o.size());
+        var oh = new ArrayList<QdOrderHandler>(o.size());
+        for (var h : hs) {
+            if (h.check()) {
+                ok.add(h.od);
+                oh.add(h);
+            }
+        }
+        send(ok, oh);
+        if (timeout > 0) {
+            hs.forEach(h -> h.timeout(timeout, unit));
+        }
+        return b;
+    }
+
+    /*
+     * A gateway without batch support gets each leg from a thread of the
+     * platform's virtual executor, so the last leg doesn't wait for all
+     * requests before it and a gateway blocking in create() holds only its
+     * own thread.
+     */
+    private void send(List<Order> orders, List<QdOrderHandler> handlers) {
+        var g = Loader.instance().gateway();
+        if (g instanceof BatchGateway) {
+            try {
+                ((BatchGateway) g).create(orders, new ArrayList<>(handlers));
+            } catch (Throwable throwable) {
+                handlers.forEach(h -> h.refuse(throwable));
+            }
+            return;
+        }
+        var x = QdVirtualExecutor.instance();
+        for (int i = 0; i < orders.size(); ++i) {
+            var o = orders.get(i);
+            var h = handlers.get(i);
+            try {
+                x.execute(() -> {
+                    try {
+                        g.create(o, h);
+                    } catch (Throwable throwable) {
+                        h.refuse(throwable);
+                    }
+                });
+            } catch (RuntimeException exception) {
+                h.refuse(exception);
             }
-            throw new TimeoutException("Create order timeout.");
         }
     }
 
@@ -50,76 +182,149 @@ class QdTransaction implements Transaction {
 
     private class QdOrderHandler implements OrderHandler {
 
-        private final CountDownLatch latch;
+        private final CompletableFuture<Order> f;
         private final Order od;
+        private final OrderHandler l;
+        private final QdBasket b;
+        private final int leg;
+        private final AtomicLong traded;
+        private final AtomicBoolean reserved;
+        private volatile long kept;
+        private volatile boolean released;
+        private volatile boolean deleting;
 
-        QdOrderHandler(Order order) {
+        QdOrderHandler(Order order, OrderHandler listener, QdBasket basket, int index) {
             od = order;
-            latch = new CountDownLatch(1);
+            l = listener;
+            b = basket;
+            leg = index;
+            traded = new AtomicLong(0);
+            reserved = new AtomicBoolean(false);
+            f = new CompletableFuture<>();
         }
 
-        boolean wait(int timeout, TimeUnit unit) {
-            try {
-                return latch.await(timeout, unit);
-            } catch (InterruptedException e) {
-                LOG.write(e, this);
+        /*
+         * Rejects the order without sending it when it fails the risk check.
+         * What a passed order reserves is given back once the order is done
+         * at the exchange or never reached it. A timed out order may still be
+         * working, so its future failing releases nothing.
+         */
+        boolean check() {
+            if (od == null) {
+                return true;
+            }
+            var x = QdRisk.instance().check(od);
+            if (x != null) {
+                onError(QdRisk.CODE, x);
                 return false;
             }
+            reserved.set(true);
+            return true;
         }
 
-        private void wake() {
-            latch.countDown();
+        void refuse(Throwable throwable) {
+            release(od);
+            f.completeExceptionally(throwable);
         }
 
-        @Override
-        public void onOrder(Order order) {
-            Persistence.instance().insert(order);
-            if (order.getStatus() != Order.Status.ACCEPTED) {
-                wake();
+        private void release(Order order) {
+            if (reserved.compareAndSet(true, false)) {
+                var n = Math.max(traded.get(), order.getTradedQuantity());
+                kept = n;
+                released = true;
+                QdRisk.instance().release(od, od.getQuantity() - n);
             }
         }
 
-        @Override
-        public void onTrade(Trade trade) {
-            Persistence.instance().insert(trade);
-            adjustContracts(trade);
+        void timeout(int timeout, TimeUnit unit) {
+            var k = QdTimer.instance().schedule(() -> expire(timeout, unit), timeout, unit);
+            f.whenComplete((o, t) -> k.cancel());
         }
 
-        private void adjustContracts(Trade trade) {
-            if (trade.getOffset() == Offset.OPEN) {
-                addContracts(trade);
-            } else {
-                removeContracts(trade);
+        /*
+         * Runs on the timer thread, the gateway is expected to take a delete
+         * request without blocking.
+         */
+        private void expire(int timeout, TimeUnit unit) {
+            if (f.isDone()) {
+                return;
             }
+            deleting = true;
+            try {
+                Loader.instance().gateway().delete(od);
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
+            var k = QdTimer.instance().schedule(() -> {
+                f.completeExceptionally(new TimeoutException("Delete order timeout."));
+            }, timeout, unit);
+            f.whenComplete((o, t) -> k.cancel());
         }
 
-        private void removeContracts(Trade trade) {
-            Persistence.instance().closeContract(trade.getInstrumentId(),
-                    trade.getExchangeId(), opDirection(trade.getDirection()),
-                    trade.getPrice(), trade.getQuantity(), trade.getUpdateTime());
+        @Override
+        public void onOrder(Order order) {
+            if (b == null || !b.report(leg, order)) {
+                persist(() -> Persistence.instance().record(order));
+            }
+            notify(() -> l.onOrder(order));
+            if (order.getStatus() == Order.Status.ACCEPTED) {
+                return;
+            }
+            release(order);
+            if (deleting && order.getStatus() != Order.Status.ALL_TRADED) {
+                f.completeExceptionally(new TimeoutException("Create order timeout."));
+            } else {
+                f.complete(order);
+            }
         }
 
-        private Direction opDirection(Direction direction) {
-            return direction == Direction.BUY ? Direction.SELL : Direction.BUY;
+        /*
+         * A failing store must not keep the order from completing, the caller
+         * would otherwise only learn about it from the timeout.
+         */
+        private void persist(Runnable store) {
+            try {
+                store.run();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
+            }
         }
 
-        private void addContracts(Trade trade) {
-            var q = trade.getQuantity();
-            while (q-- > 0) {
-                Persistence.instance().insert(createContract(trade));
+        private void notify(Runnable callback) {
+            if (l == null) {
+                return;
+            }
+            try {
+                callback.run();
+            } catch (Throwable throwable) {
+                LOG.write(throwable, this);
             }
         }
 
-        private Contract createContract(Trade trade) {
-            var c = new Contract();
-            c.setContractId(TOOLS.nextId());
-            c.setInstrumentId(trade.getInstrumentId());
-            c.setExchangeId(trade.getExchangeId());
-            c.setDirection(trade.getDirection());
-            c.setOpenPrice(trade.getPrice());
-            c.setTradingDay(trade.getTradingDay());
-            c.setTradeId(trade.getTradeId());
-            return c;
+        /*
+         * The trade is logged ahead and stored with the lot it opens in one
+         * record, then applied to the positions held in memory.
+         */
+        @Override
+        public void onTrade(Trade trade) {
+            var lot = trade.getOffset() == Offset.OPEN ? Lot.open(trade, TOOLS.nextId()) : null;
+            persist(() -> Persistence.instance().record(trade, lot));
+            persist(() -> {
+                if (lot != null) {
+                    QdPositions.instance().open(lot);
+                } else {
+                    QdPositions.instance().close(trade);
+                }
+            });
+            var t = traded.addAndGet(trade.getQuantity());
+            QdRisk.instance().onTrade(trade);
+            if (released) {
+                QdRisk.instance().onLateFill(trade, Math.min(trade.getQuantity(), t - kept));
+            }
+            if (b != null) {
+                b.traded(trade.getQuantity());
+            }
+            notify(() -> l.onTrade(trade));
         }
 
         @Override
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.quantdirect.tools.LOG;
+import org.quantdirect.tools.METRICS;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs every task on a thread of its own, a virtual thread when the JVM has
+ * them. The platform is built for Java 11, so the virtual thread executor is
+ * looked up at runtime, and older JVMs get a cached pool of platform threads
+ * instead. Either way a task that blocks holds only its own thread.
+ * <p>
+ * A virtual thread that blocks inside a monitor pins its carrier thread. With
+ * virtual threads the executor counts the JDK's {@code jdk.VirtualThreadPinned}
+ * events from an in-process flight recording, looked up at runtime as well.
+ * The event keeps the JDK's threshold, so only pins long enough to hold up
+ * other virtual threads are counted.
+ */
+class QdVirtualExecutor implements Executor {
+
+    private static final String PINNED = "jdk.VirtualThreadPinned";
+
+    private static QdVirtualExecutor e;
+
+    private final ExecutorService x;
+    private final boolean virtual;
+    private final AtomicInteger live;
+    private final AtomicLong pinned;
+
+    QdVirtualExecutor() {
+        var v = virtualExecutor();
+        virtual = v != null;
+        if (v != null) {
+            x = v;
+        } else {
+            final var n = new AtomicInteger(0);
+            x = Executors.newCachedThreadPool(r -> {
+                var t = new Thread(r, "QD-QUANTER-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        live = new AtomicInteger(0);
+        pinned = new AtomicLong(0);
+        if (virtual) {
+            watchPinned();
+        }
+    }
+
+    /*
+     * The stream runs on a daemon thread of its own, the thread of the stream's
+     * own startAsync() would keep the JVM from exiting.
+     */
+    private void watchPinned() {
+        try {
+            var c = Class.forName("jdk.jfr.consumer.RecordingStream");
+            var r = c.getConstructor().newInstance();
+            c.getMethod("enable", String.class).invoke(r, PINNED);
+            Consumer<Object> count = event -> pinned.incrementAndGet();
+            c.getMethod("onEvent", String.class, Consumer.class).invoke(r, PINNED, count);
+            c.getMethod("setMaxAge", Duration.class).invoke(r, Duration.ofSeconds(10));
+            var start = c.getMethod("start");
+            var t = new Thread(() -> {
+                try {
+                    start.invoke(r);
+                } catch (ReflectiveOperationException | RuntimeException exception) {
+                    LOG.write(exception, this);
+                }
+            }, "QD-VIRTUAL-PINNED");
+            t.setDaemon(true);
+            t.start();
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError exception) {
+            LOG.write(exception, this);
+        }
+    }
+
+    static synchronized QdVirtualExecutor instance() {
+        if (e == null) {
+            final var x = new QdVirtualExecutor();
+            METRICS.register("exec.virtual", () -> x.isVirtual() ? 1 : 0);
+            METRICS.register("exec.threads.live", x::live);
+            METRICS.register("exec.virtual.pinned", x::pinned);
+            e = x;
+        }
+        return e;
+    }
+
+    private static ExecutorService virtualExecutor() {
+        try {
+            var m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException exception) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            LOG.write(exception, QdVirtualExecutor.class);
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        live.incrementAndGet();
+        try {
+            x.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    live.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException exception) {
+            live.decrementAndGet();
+            throw exception;
+        }
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    int live() {
+        return live.get();
+    }
+
+    long pinned() {
+        return pinned.get();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.tools;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.function.LongSupplier;
+
+/**
+ * Time seen by the platform, in epoch nanoseconds. It follows the wall clock
+ * unless a replay installs a virtual clock, so the stages that need the
+ * current time behave the same in a backtest as in production.
+ */
+public abstract class CLOCK {
+
+    private static final ZoneOffset ZONE = ZoneOffset.ofHours(8);
+    private static final LongSupplier WALL = () -> System.currentTimeMillis() * 1_000_000L;
+    private static volatile LongSupplier c = WALL;
+
+    public static void use(LongSupplier epochNanos) {
+        c = epochNanos == null ? WALL : epochNanos;
+    }
+
+    public static void reset() {
+        c = WALL;
+    }
+
+    public static boolean isVirtual() {
+        return c != WALL;
+    }
+
+    public static long nanos() {
+        return c.getAsLong();
+    }
+
+    public static long millis() {
+        return Math.floorDiv(c.getAsLong(), 1_000_000L);
+    }
+
+    public static LocalDateTime now() {
+        var n = c.getAsLong();
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(n, 1_000_000_000L),
+                (int) Math.floorMod(n, 1_000_000_000L), ZONE);
+    }
+
+    public static LocalDate today() {
+        return LocalDate.ofEpochDay(Math.floorDiv(millis() / 1000L + ZONE.getTotalSeconds(), 86_400L));
+    }
+}
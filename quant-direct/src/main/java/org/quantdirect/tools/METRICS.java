@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.tools;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named gauges published by the platform stages. A gauge is only read when
+ * somebody asks for it, so registering one costs nothing on the hot path.
+ */
+public abstract class METRICS {
+
+    private static final Map<String, LongSupplier> g = new ConcurrentHashMap<>();
+
+    public static void register(String name, LongSupplier gauge) {
+        g.put(name, gauge);
+    }
+
+    public static void unregister(String name) {
+        g.remove(name);
+    }
+
+    public static long read(String name) {
+        var s = g.get(name);
+        if (s == null) {
+            return 0;
+        }
+        return s.getAsLong();
+    }
+
+    public static Map<String, Long> snapshot() {
+        var r = new TreeMap<String, Long>();
+        g.forEach((k, v) -> r.put(k, v.getAsLong()));
+        return r;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.persistence;
+
+import org.quantdirect.Direction;
+import org.quantdirect.Offset;
+import org.quantdirect.Order;
+import org.quantdirect.Trade;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the inserts per second of {@link Persistence}, one row per call
+ * and in batches, for every {@link Persistence.Ack}. A measurement ends when
+ * its rows are committed. Then it times reads of a thread that doesn't write,
+ * alone and while another thread keeps writing. It writes to a database in a
+ * new temporary directory, run it with the test classpath:
+ * <pre>
+ * java -cp ... org.quantdirect.persistence.PersistenceBenchmark [rows] [batch] [reads]
+ * </pre>
+ */
+public class PersistenceBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        var rows = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        var batch = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        var reads = args.length > 2 ? Integer.parseInt(args[2]) : 5_000;
+        var dir = Files.createTempDirectory("qd-bench").toFile();
+        System.out.println("Database in " + dir.getAbsolutePath() + ".");
+        var p = new QdWriteBehind(new QdPersistence("jdbc:h2:" + new File(dir, "QuantDirect").getAbsolutePath()));
+        for (var ack : Persistence.Ack.values()) {
+            p.setAck(ack);
+            for (int round = 0; round < 3; ++round) {
+                System.out.printf("%s round %d: order %.0f/s, trade %.0f/s, order batch of %d %.0f/s%n",
+                        ack, round, orders(p, rows), trades(p, rows), batch, batches(p, rows, batch));
+            }
+            reads(p, ack, reads, false);
+            reads(p, ack, reads, true);
+        }
+        System.exit(0);
+    }
+
+    private static double orders(Persistence p, int rows) {
+        var s = System.nanoTime();
+        for (int i = 0; i < rows; ++i) {
+            p.insert(order(i));
+        }
+        return rate(p, rows, s);
+    }
+
+    private static double trades(Persistence p, int rows) {
+        var s = System.nanoTime();
+        for (int i = 0; i < rows; ++i) {
+            p.insert(trade(i));
+        }
+        return rate(p, rows, s);
+    }
+
+    private static double batches(Persistence p, int rows, int batch) {
+        var s = System.nanoTime();
+        var b = new ArrayList<Order>(batch);
+        for (int i = 0; i < rows; ++i) {
+            b.add(order(i));
+            if (b.size() == batch) {
+                p.insert(b);
+                b.clear();
+            }
+        }
+        p.insert(b);
+        return rate(p, rows, s);
+    }
+
+    /*
+     * A read that waits for the other thread's writes to commit shows in the
+     * tail of the latencies.
+     */
+    private static void reads(Persistence p, Persistence.Ack ack, int reads, boolean writing) {
+        var stop = new AtomicBoolean();
+        var written = new AtomicLong();
+        var w = new Thread(() -> {
+            for (int i = 0; writing && !stop.get(); ++i) {
+                p.insert(order(i));
+                written.incrementAndGet();
+            }
+        }, "BENCH-WRITER");
+        w.start();
+        var l = new long[reads];
+        var s = System.nanoTime();
+        for (int i = 0; i < reads; ++i) {
+            var t = System.nanoTime();
+            p.countOpenContractsBefore("c2105", "DCE", Direction.BUY, LocalDateTime.now());
+            l[i] = System.nanoTime() - t;
+        }
+        var e = System.nanoTime() - s;
+        stop.set(true);
+        try {
+            w.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        p.flush();
+        Arrays.sort(l);
+        System.out.printf("%s reads %s: mean %.1fus, p50 %.1fus, p99 %.1fus, max %.1fus, writes %.0f/s%n",
+                ack, writing ? "while writing" : "alone", e / 1e3 / reads, l[reads / 2] / 1e3,
+                l[reads * 99 / 100] / 1e3, l[reads - 1] / 1e3, written.get() * 1e9 / e);
+    }
+
+    private static double rate(Persistence p, int rows, long start) {
+        p.flush();
+        return rows * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static Order order(int i) {
+        var o = new Order();
+        o.setOrderId("BENCH-" + i);
+        o.setInstrumentId("c2105");
+        o.setExchangeId("DCE");
+        o.setPrice(2500 + i % 50);
+        o.setQuantity(1 + i % 10);
+        o.setStatus(Order.Status.ACCEPTED);
+        o.setStatusMessage("Benchmark");
+        o.setDirection(i % 2 == 0 ? Direction.BUY : Direction.SELL);
+        o.setOffset(Offset.OPEN);
+        o.setTradingDay(LocalDate.now());
+        o.setUpdateTime(LocalDateTime.now());
+        return o;
+    }
+
+    private static Trade trade(int i) {
+        var t = new Trade();
+        t.setTradeId("BENCH-T-" + i);
+        t.setOrderId("BENCH-" + i);
+        t.setInstrumentId("c2105");
+        t.setExchangeId("DCE");
+        t.setPrice(2500 + i % 50);
+        t.setQuantity(1 + i % 10);
+        t.setDirection(i % 2 == 0 ? Direction.BUY : Direction.SELL);
+        t.setOffset(Offset.OPEN);
+        t.setTradingDay(LocalDate.now());
+        t.setUpdateTime(LocalDateTime.now());
+        return t;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.quantdirect.Contract;
+import org.quantdirect.Direction;
+import org.quantdirect.Offset;
+import org.quantdirect.Trade;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QdPersistenceTest {
+
+    private static final LocalDateTime CLOSE = LocalDateTime.of(2021, 3, 3, 10, 15);
+    private static final LocalDateTime LATER = LocalDateTime.of(2022, 1, 1, 0, 0);
+
+    @TempDir
+    File dir;
+
+    private QdPersistence p;
+
+    @BeforeEach
+    void setUp() {
+        p = new QdPersistence("jdbc:h2:" + new File(dir, "QuantDirect").getAbsolutePath());
+        p.insert(lot("A", 3, LocalDate.of(2021, 3, 1)));
+        p.insert(lot("B", 2, LocalDate.of(2021, 3, 2)));
+    }
+
+    @Test
+    void closeTakesOldestLotsFirstAndSplitsTheLast() {
+        p.closeContract("c2105", "DCE", Direction.BUY, 2600, 4, CLOSE);
+        var l = p.getLots("c2105", "DCE", Direction.BUY);
+        assertEquals(3, l.size());
+        assertClosed(l.get(0), "A", 3);
+        assertEquals("B", l.get(1).getContract().getContractId());
+        assertEquals(1, l.get(1).getQuantity());
+        assertNull(l.get(1).getContract().getCloseTime());
+        assertNotEquals("B", l.get(2).getContract().getContractId());
+        assertEquals("T-B", l.get(2).getContract().getTradeId());
+        assertClosed(l.get(2), null, 1);
+    }
+
+    @Test
+    void closeOfWholeLotsDoesNotSplit() {
+        p.closeContract("c2105", "DCE", Direction.BUY, 2600, 3, CLOSE);
+        var l = p.getLots("c2105", "DCE", Direction.BUY);
+        assertEquals(2, l.size());
+        assertClosed(l.get(0), "A", 3);
+        assertEquals(2, l.get(1).getQuantity());
+        assertNull(l.get(1).getContract().getCloseTime());
+    }
+
+    @Test
+    void closeOfMoreThanOpenClosesAll() {
+        p.closeContract("c2105", "DCE", Direction.BUY, 2600, 9, CLOSE);
+        var l = p.getLots("c2105", "DCE", Direction.BUY);
+        assertEquals(2, l.size());
+        assertClosed(l.get(0), "A", 3);
+        assertClosed(l.get(1), "B", 2);
+        assertEquals(0, p.countOpenContractsBefore("c2105", "DCE", Direction.BUY, LATER));
+    }
+
+    @Test
+    void contractsAndCountsAreInUnits() {
+        p.closeContract("c2105", "DCE", Direction.BUY, 2600, 4, CLOSE);
+        var c = p.getContracts("c2105", "DCE", Direction.BUY);
+        assertEquals(5, c.size());
+        assertEquals(1, c.stream().filter(x -> x.getCloseTime() == null).count());
+        assertEquals(5, p.countContractsBefore("c2105", "DCE", Direction.BUY, LATER));
+        assertEquals(1, p.countOpenContractsBefore("c2105", "DCE", Direction.BUY, LATER));
+        assertEquals(3, p.countContractsBefore("c2105", "DCE", Direction.BUY,
+                LocalDate.of(2021, 3, 2).atStartOfDay()));
+    }
+
+    @Test
+    void openUnitsKeepTheirIdsWhenTheirLotClosesInPart() {
+        var before = p.getContracts("c2105", "DCE", Direction.BUY);
+        assertEquals(List.of("A-2", "A-1", "A-0", "B-1", "B-0"), ids(before));
+        p.closeContract("c2105", "DCE", Direction.BUY, 2600, 4, CLOSE);
+        var open = p.getContracts("c2105", "DCE", Direction.BUY).stream()
+                .filter(x -> x.getCloseTime() == null).collect(Collectors.toList());
+        assertEquals(List.of("B-0"), ids(open));
+    }
+
+    @Test
+    void closeTradeClosesOppositeSide() {
+        var t = new Trade();
+        t.setTradeId("T-C");
+        t.setInstrumentId("c2105");
+        t.setExchangeId("DCE");
+        t.setPrice(2550);
+        t.setQuantity(2);
+        t.setDirection(Direction.SELL);
+        t.setOffset(Offset.AUTO_CLOSE);
+        t.setTradingDay(LocalDate.of(2021, 3, 3));
+        t.setUpdateTime(CLOSE);
+        p.record(t, null);
+        var l = p.getLots("c2105", "DCE", Direction.BUY);
+        assertEquals(3, l.size());
+        assertEquals(1, l.get(0).getQuantity());
+        assertNull(l.get(0).getContract().getCloseTime());
+        assertEquals(2550, l.get(1).getContract().getClosePrice());
+        assertEquals(2, l.get(1).getQuantity());
+        assertEquals(2, l.get(2).getQuantity());
+        assertNull(l.get(2).getContract().getCloseTime());
+        assertTrue(p.getLots("c2105", "DCE", Direction.SELL).isEmpty());
+    }
+
+    @Test
+    void closeOnlyTouchesItsOwnRowsWhenIdsRepeat() {
+        p.insert(lot("A", 1, LocalDate.of(2021, 3, 2)));
+        var other = lot("A", 2, LocalDate.of(2021, 3, 1));
+        other.getContract().setDirection(Direction.SELL);
+        p.insert(other);
+        p.closeContract("c2105", "DCE", Direction.BUY, 2600, 4, CLOSE);
+        var l = p.getLots("c2105", "DCE", Direction.BUY);
+        assertEquals(4, l.size());
+        assertClosed(l.get(0), "A", 3);
+        assertEquals(2, l.stream().filter(x -> x.getContract().getCloseTime() == null).count());
+        assertEquals(2, p.countOpenContractsBefore("c2105", "DCE", Direction.BUY, LATER));
+        var s = p.getLots("c2105", "DCE", Direction.SELL);
+        assertEquals(2, s.get(0).getQuantity());
+        assertNull(s.get(0).getContract().getCloseTime());
+    }
+
+    private static void assertClosed(Lot lot, String id, long quantity) {
+        if (id != null) {
+            assertEquals(id, lot.getContract().getContractId());
+        }
+        assertEquals(quantity, lot.getQuantity());
+        assertEquals(2600, lot.getContract().getClosePrice());
+        assertEquals(CLOSE, lot.getContract().getCloseTime());
+    }
+
+    private static List<String> ids(Collection<Contract> contracts) {
+        return contracts.stream().map(Contract::getContractId).collect(Collectors.toList());
+    }
+
+    private static Lot lot(String id, long quantity, LocalDate day) {
+        var c = new Contract();
+        c.setContractId(id);
+        c.setTradeId("T-" + id);
+        c.setInstrumentId("c2105");
+        c.setExchangeId("DCE");
+        c.setDirection(Direction.BUY);
+        c.setOpenPrice(2500);
+        c.setTradingDay(day);
+        return new Lot(c, quantity);
+    }
+}
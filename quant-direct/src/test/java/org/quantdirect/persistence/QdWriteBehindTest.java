@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.quantdirect.Direction;
+import org.quantdirect.Offset;
+import org.quantdirect.Trade;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QdWriteBehindTest {
+
+    @TempDir
+    File dir;
+
+    private String url;
+    private File wal;
+
+    @BeforeEach
+    void setUp() {
+        url = "jdbc:h2:" + new File(dir, "QuantDirect").getAbsolutePath();
+        wal = new File(dir, "wal");
+    }
+
+    /*
+     * The database committed the first event before the crash, the log holds
+     * it and two more.
+     */
+    @Test
+    void replaysOnlyEventsAfterCheckpoint() throws IOException {
+        crashAfterFirstOfThree();
+        var w = new QdWriteBehind(new QdPersistence(url));
+        w.open(wal);
+        assertEquals("3", w.getProperty(QdWriteBehind.CHECKPOINT));
+        assertReplayed(w);
+    }
+
+    @Test
+    void reopeningReplaysNothingTwice() throws IOException {
+        crashAfterFirstOfThree();
+        new QdWriteBehind(new QdPersistence(url)).open(wal);
+        var w = new QdWriteBehind(new QdPersistence(url));
+        w.open(wal);
+        assertEquals("3", w.getProperty(QdWriteBehind.CHECKPOINT));
+        assertReplayed(w);
+    }
+
+    @Test
+    void logsGoOnAfterCheckpoint() throws IOException {
+        crashAfterFirstOfThree();
+        var w = new QdWriteBehind(new QdPersistence(url));
+        w.open(wal);
+        w.setAck(Persistence.Ack.COMMIT);
+        var t = trade("T-D", Direction.BUY, Offset.OPEN, 1, 4);
+        w.record(t, Lot.open(t, "D"));
+        assertEquals("4", w.getProperty(QdWriteBehind.CHECKPOINT));
+        assertEquals(4, w.getLots("c2105", "DCE", Direction.BUY).size());
+    }
+
+    private void crashAfterFirstOfThree() throws IOException {
+        var a = trade("T-A", Direction.BUY, Offset.OPEN, 2, 1);
+        var b = trade("T-B", Direction.BUY, Offset.OPEN, 1, 2);
+        var c = trade("T-C", Direction.SELL, Offset.AUTO_CLOSE, 1, 3);
+        var p = new QdPersistence(url);
+        p.record(a, Lot.open(a, "A"));
+        p.setProperty(QdWriteBehind.CHECKPOINT, "1");
+        var l = new QdWal(wal);
+        assertEquals(1, l.append(a, "A"));
+        assertEquals(2, l.append(b, "B"));
+        assertEquals(3, l.append(c, null));
+        l.close();
+    }
+
+    /*
+     * A is stored once and split by the close of C, B is opened once.
+     */
+    private static void assertReplayed(Persistence p) {
+        var l = p.getLots("c2105", "DCE", Direction.BUY);
+        assertEquals(3, l.size());
+        assertEquals("A", l.get(0).getContract().getContractId());
+        assertEquals(1, l.get(0).getQuantity());
+        assertNull(l.get(0).getContract().getCloseTime());
+        assertEquals(1, l.get(1).getQuantity());
+        assertEquals(2600, l.get(1).getContract().getClosePrice());
+        assertEquals("B", l.get(2).getContract().getContractId());
+        assertEquals(1, l.get(2).getQuantity());
+        assertEquals(3, p.countContractsBefore("c2105", "DCE", Direction.BUY, LocalDateTime.of(2022, 1, 1, 0, 0)));
+    }
+
+    private static Trade trade(String id, Direction direction, Offset offset, long quantity, int day) {
+        var t = new Trade();
+        t.setTradeId(id);
+        t.setOrderId("O-" + id);
+        t.setInstrumentId("c2105");
+        t.setExchangeId("DCE");
+        t.setPrice(offset == Offset.OPEN ? 2500 : 2600);
+        t.setQuantity(quantity);
+        t.setDirection(direction);
+        t.setOffset(offset);
+        t.setTradingDay(LocalDate.of(2021, 3, day));
+        t.setUpdateTime(LocalDateTime.of(2021, 3, day, 9, 30));
+        return t;
+    }
+}
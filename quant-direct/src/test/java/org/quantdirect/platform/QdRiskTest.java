@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.quantdirect.Direction;
+import org.quantdirect.Offset;
+import org.quantdirect.Order;
+import org.quantdirect.Tick;
+import org.quantdirect.Trade;
+import org.quantdirect.tools.CLOCK;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QdRiskTest {
+
+    private static final AtomicInteger instruments = new AtomicInteger();
+
+    /*
+     * The risk engine is a singleton with one rate for all orders, every test
+     * starts an hour after the previous one so the rate it left is spent.
+     */
+    private static final AtomicLong start = new AtomicLong(System.currentTimeMillis() * 1_000_000L);
+
+    private final AtomicLong now = new AtomicLong();
+    private final QdRisk r = QdRisk.instance();
+    private String instrument;
+
+    @BeforeEach
+    void setUp() {
+        now.set(start.addAndGet(TimeUnit.HOURS.toNanos(1)));
+        CLOCK.use(now::get);
+        instrument = "risk" + instruments.incrementAndGet();
+    }
+
+    @AfterEach
+    void tearDown() {
+        r.setOrderRate(0);
+        r.setMaxPosition(-1);
+        r.setMaxOrderSize(0);
+        CLOCK.reset();
+    }
+
+    @Test
+    void rateAllowsSecondsBurstThenOneOrderPerInterval() {
+        r.setOrderRate(10);
+        for (int i = 0; i < 10; ++i) {
+            assertNull(r.check(order(Direction.BUY, Offset.AUTO_CLOSE, 1)), "Order " + i);
+        }
+        assertNotNull(r.check(order(Direction.BUY, Offset.AUTO_CLOSE, 1)));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertNull(r.check(order(Direction.BUY, Offset.AUTO_CLOSE, 1)));
+        assertNotNull(r.check(order(Direction.BUY, Offset.AUTO_CLOSE, 1)));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        for (int i = 0; i < 10; ++i) {
+            assertNull(r.check(order(Direction.BUY, Offset.AUTO_CLOSE, 1)), "Order " + i);
+        }
+    }
+
+    @Test
+    void rejectedOrderDoesNotUseRate() {
+        r.setOrderRate(1);
+        r.setMaxOrderSize(5);
+        r.setMaxPosition(instrument, 2);
+        r.onTick(QdInstruments.instance().id(instrument), tick(2600, 2400));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 6)));
+        var o = order(Direction.BUY, Offset.OPEN, 1);
+        o.setPrice(2700);
+        assertNotNull(r.check(o));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 3)));
+        assertNull(r.check(order(Direction.BUY, Offset.OPEN, 1)));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 1)));
+    }
+
+    @Test
+    void rateRefusalGivesReservationBack() {
+        r.setOrderRate(1);
+        r.setMaxPosition(instrument, 5);
+        assertNull(r.check(order(Direction.BUY, Offset.OPEN, 2)));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 2)));
+        assertEquals(2, r.getPosition(instrument, Direction.BUY));
+    }
+
+    @Test
+    void openOrdersReserveUpToMaxPosition() {
+        r.setMaxPosition(instrument, 5);
+        var a = order(Direction.BUY, Offset.OPEN, 3);
+        assertNull(r.check(a));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 3)));
+        assertNull(r.check(order(Direction.SELL, Offset.OPEN, 3)));
+        assertEquals(3, r.getPosition(instrument, Direction.BUY));
+        r.release(a, 3);
+        assertEquals(0, r.getPosition(instrument, Direction.BUY));
+        assertNull(r.check(order(Direction.BUY, Offset.OPEN, 5)));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 1)));
+    }
+
+    @Test
+    void filledOpenKeepsReservationUntilClosed() {
+        r.setMaxPosition(instrument, 5);
+        var a = order(Direction.BUY, Offset.OPEN, 4);
+        assertNull(r.check(a));
+        r.release(a, 0);
+        assertEquals(4, r.getPosition(instrument, Direction.BUY));
+        r.onTrade(trade(Direction.SELL, Offset.CLOSE_TODAY, 3));
+        assertEquals(1, r.getPosition(instrument, Direction.BUY));
+        assertNull(r.check(order(Direction.BUY, Offset.OPEN, 4)));
+        assertEquals(5, r.getPosition(instrument, Direction.BUY));
+    }
+
+    @Test
+    void lateOpenFillCountsAgain() {
+        r.setMaxPosition(instrument, 5);
+        var a = order(Direction.BUY, Offset.OPEN, 4);
+        assertNull(r.check(a));
+        r.release(a, 4);
+        r.onLateFill(trade(Direction.BUY, Offset.OPEN, 2), 2);
+        assertEquals(2, r.getPosition(instrument, Direction.BUY));
+        assertNotNull(r.check(order(Direction.BUY, Offset.OPEN, 4)));
+    }
+
+    @Test
+    void positionIsSharedByExchanges() {
+        r.setMaxPosition(instrument, 5);
+        r.setPosition(instrument, Direction.BUY, 4);
+        var o = order(Direction.BUY, Offset.OPEN, 2);
+        o.setExchangeId("SHFE");
+        assertNotNull(r.check(o));
+        assertNull(r.check(order(Direction.BUY, Offset.OPEN, 1)));
+    }
+
+    private Order order(Direction direction, Offset offset, long quantity) {
+        var o = new Order();
+        o.setInstrumentId(instrument);
+        o.setExchangeId("DCE");
+        o.setPrice(2500);
+        o.setQuantity(quantity);
+        o.setDirection(direction);
+        o.setOffset(offset);
+        return o;
+    }
+
+    private Trade trade(Direction direction, Offset offset, long quantity) {
+        var t = new Trade();
+        t.setInstrumentId(instrument);
+        t.setExchangeId("DCE");
+        t.setPrice(2500);
+        t.setQuantity(quantity);
+        t.setDirection(direction);
+        t.setOffset(offset);
+        return t;
+    }
+
+    private Tick tick(double upper, double lower) {
+        var t = new Tick();
+        t.setInstrumentId(instrument);
+        t.setUpperLimitPrice(upper);
+        t.setLowerLimitPrice(lower);
+        return t;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.quantdirect.platform;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.quantdirect.tools.CLOCK;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QdTimerTest {
+
+    private static final int LIMIT = 1_000_000;
+
+    private final AtomicLong now = new AtomicLong();
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        now.set(System.currentTimeMillis() * 1_000_000L);
+        CLOCK.use(now::get);
+        // Let the wheel catch up with the new time before a test moves it.
+        var l = new CountDownLatch(1);
+        QdTimer.instance().schedule(l::countDown, 0, TimeUnit.MILLISECONDS);
+        assertTrue(l.await(2, TimeUnit.SECONDS));
+    }
+
+    @AfterEach
+    void tearDown() {
+        CLOCK.reset();
+    }
+
+    @Test
+    void expiresOnceClockPassesDeadline() throws InterruptedException {
+        var l = new CountDownLatch(1);
+        QdTimer.instance().schedule(l::countDown, 1, TimeUnit.SECONDS);
+        assertFalse(l.await(100, TimeUnit.MILLISECONDS));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(l.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void clockMovedBackDoesNotExpireNewTimeouts() throws InterruptedException {
+        now.addAndGet(-TimeUnit.HOURS.toNanos(1));
+        var l = new CountDownLatch(1);
+        var x = QdTimer.instance().schedule(l::countDown, 1, TimeUnit.SECONDS);
+        assertFalse(l.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(x.isExpired());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(l.await(2, TimeUnit.SECONDS));
+        assertTrue(x.isExpired());
+    }
+
+    @Test
+    void clockMovedBackDoesNotLoopRescheduledTask() throws InterruptedException {
+        now.addAndGet(-TimeUnit.HOURS.toNanos(1));
+        var runs = new AtomicInteger();
+        QdTimer.instance().schedule(new Again(runs, 1, TimeUnit.MINUTES), 1, TimeUnit.MINUTES);
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void taskScheduledWhileExpiringWaitsForNextRound() throws InterruptedException {
+        var runs = new AtomicInteger();
+        var again = new Again(runs, 0, TimeUnit.MILLISECONDS);
+        QdTimer.instance().schedule(again, 0, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+        again.stop = true;
+        assertTrue(runs.get() > 0);
+        assertTrue(runs.get() < 1_000, "Ran " + runs.get() + " times.");
+    }
+
+    private static class Again implements Runnable {
+
+        private final AtomicInteger runs;
+        private final long delay;
+        private final TimeUnit unit;
+        private volatile boolean stop;
+
+        Again(AtomicInteger runs, long delay, TimeUnit unit) {
+            this.runs = runs;
+            this.delay = delay;
+            this.unit = unit;
+        }
+
+        @Override
+        public void run() {
+            if (runs.incrementAndGet() < LIMIT && !stop) {
+                QdTimer.instance().schedule(this, delay, unit);
+            }
+        }
+    }
+}